@@ -0,0 +1,498 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.CSVWriter;
+import com.opencsv.exceptions.CsvValidationException;
+
+/**
+ * A long-lived writer of results lines to a CSV file.
+ * <p>
+ * There is one sink per CSV file, shared by all the runners of the JVM, and
+ * all its methods are thread-safe. The sink reads the header of an existing
+ * file only once, keeps the file open for appending, and buffers the lines
+ * it appends. Buffered lines are flushed to the file at a regular interval,
+ * and the file is synced to the disk at another, longer interval. Sinks that
+ * are not used for a while are closed and forgotten, and all the sinks are
+ * flushed, synced and closed when the JVM shuts down.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class CSVResultsSink
+{
+
+	private static final Map< File, CSVResultsSink > SINKS = new HashMap<>();
+
+	/**
+	 * Lines are written to the file when this many characters are pending.
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Default maximal delay before an appended line is written to the file,
+	 * in milliseconds.
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+	/**
+	 * Default interval between syncs of the files to the disk, in
+	 * milliseconds.
+	 */
+	public static final long DEFAULT_SYNC_INTERVAL = 30000;
+
+	/**
+	 * Maximal delay before an appended line is written to the file, in
+	 * milliseconds.
+	 */
+	private static long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+	/**
+	 * Interval between syncs of the files to the disk, in milliseconds. If 0
+	 * or negative, the files are synced only when they are closed.
+	 */
+	private static long syncInterval = DEFAULT_SYNC_INTERVAL;
+
+	/**
+	 * Sinks not used for this long are closed and removed, in milliseconds.
+	 */
+	private static final long IDLE_TIMEOUT = 60000;
+
+	private static ScheduledExecutorService scheduler;
+
+	private static boolean shutdownHookInstalled = false;
+
+	private static long lastSync = System.currentTimeMillis();
+
+	private final File file;
+
+	/**
+	 * The lines appended but not written to the file yet.
+	 */
+	private final StringWriter pending = new StringWriter();
+
+	private final CSVWriter csvWriter = new CSVWriter( pending,
+			CSVWriter.DEFAULT_SEPARATOR,
+			CSVWriter.NO_QUOTE_CHARACTER,
+			CSVWriter.DEFAULT_ESCAPE_CHARACTER,
+			CSVWriter.DEFAULT_LINE_END );
+
+	/**
+	 * The header of the file, or <code>null</code> if it was not read yet.
+	 */
+	private String[] header;
+
+	private FileOutputStream out;
+
+	private boolean unsynced = false;
+
+	private long lastUsed = System.currentTimeMillis();
+
+	/**
+	 * Whether this sink was removed from the sinks map because it was idle.
+	 */
+	private boolean retired = false;
+
+	private CSVResultsSink( final File file )
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Returns the sink of the specified CSV file. The same instance is
+	 * returned for the same file.
+	 * 
+	 * @param file
+	 *            the CSV file.
+	 * @return the sink.
+	 */
+	public static CSVResultsSink get( final File file )
+	{
+		final File key = file.toPath().toAbsolutePath().normalize().toFile();
+		synchronized ( SINKS )
+		{
+			if ( scheduler == null )
+				start();
+			return SINKS.computeIfAbsent( key, CSVResultsSink::new );
+		}
+	}
+
+	/**
+	 * Sets the maximal delay before an appended line is written to its file.
+	 * 
+	 * @param millis
+	 *            the delay in milliseconds.
+	 */
+	public static void setFlushInterval( final long millis )
+	{
+		synchronized ( SINKS )
+		{
+			if ( flushInterval == Math.max( 1, millis ) )
+				return;
+
+			flushInterval = Math.max( 1, millis );
+			if ( scheduler != null )
+			{
+				scheduler.shutdown();
+				start();
+			}
+		}
+	}
+
+	/**
+	 * Sets the interval between syncs of the files to the disk.
+	 * 
+	 * @param millis
+	 *            the interval in milliseconds. If 0 or negative, the files
+	 *            are synced only when they are closed, which happens at the
+	 *            latest when the parameter sweep ends.
+	 */
+	public static void setSyncInterval( final long millis )
+	{
+		synchronized ( SINKS )
+		{
+			syncInterval = millis;
+		}
+	}
+
+	/**
+	 * Flushes, syncs and closes all the sinks. They can still be used
+	 * afterwards, and open their file again when needed.
+	 */
+	public static void closeAll()
+	{
+		final List< CSVResultsSink > sinks;
+		synchronized ( SINKS )
+		{
+			sinks = new ArrayList<>( SINKS.values() );
+		}
+		for ( final CSVResultsSink sink : sinks )
+			sink.close();
+	}
+
+	private static void start()
+	{
+		scheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread thread = new Thread( r, "CSVResultsSink flusher" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		scheduler.scheduleWithFixedDelay( CSVResultsSink::flushAll, flushInterval, flushInterval, TimeUnit.MILLISECONDS );
+		if ( !shutdownHookInstalled )
+		{
+			Runtime.getRuntime().addShutdownHook( new Thread( CSVResultsSink::closeAll ) );
+			shutdownHookInstalled = true;
+		}
+	}
+
+	private static void flushAll()
+	{
+		final List< CSVResultsSink > sinks;
+		final boolean sync;
+		synchronized ( SINKS )
+		{
+			sinks = new ArrayList<>( SINKS.values() );
+			final long now = System.currentTimeMillis();
+			sync = syncInterval > 0 && now - lastSync >= syncInterval;
+			if ( sync )
+				lastSync = now;
+		}
+		final long now = System.currentTimeMillis();
+		for ( final CSVResultsSink sink : sinks )
+		{
+			try
+			{
+				if ( sync )
+					sink.sync();
+				else
+					sink.flush();
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+			}
+			sink.retireIfIdle( now );
+		}
+	}
+
+	/**
+	 * Closes this sink and removes it from the sinks map if it has no pending
+	 * line and was not used for {@link #IDLE_TIMEOUT}.
+	 */
+	private synchronized void retireIfIdle( final long now )
+	{
+		if ( pending.getBuffer().length() > 0 || now - lastUsed < IDLE_TIMEOUT )
+			return;
+
+		close();
+		retired = true;
+		synchronized ( SINKS )
+		{
+			SINKS.remove( file, this );
+		}
+	}
+
+	/**
+	 * Returns the sink to use for the file of this sink. This sink if it is
+	 * still in the sinks map, or registered again if no other sink replaced
+	 * it since it was retired.
+	 */
+	private CSVResultsSink active()
+	{
+		lastUsed = System.currentTimeMillis();
+		if ( !retired )
+			return this;
+
+		synchronized ( SINKS )
+		{
+			final CSVResultsSink other = SINKS.get( file );
+			if ( other != null )
+				return other;
+
+			SINKS.put( file, this );
+			retired = false;
+			return this;
+		}
+	}
+
+	/**
+	 * Returns the CSV file of this sink.
+	 * 
+	 * @return the file.
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Creates the CSV file with the specified header if it does not exist.
+	 * 
+	 * @param header
+	 *            the header of the file.
+	 * @return <code>true</code> if the file was created, <code>false</code>
+	 *         if it already existed.
+	 * @throws IOException
+	 *             if the file cannot be created.
+	 */
+	public synchronized boolean createIfAbsent( final String[] header ) throws IOException
+	{
+		final CSVResultsSink sink = active();
+		if ( sink != this )
+			return sink.createIfAbsent( header );
+
+		if ( file.exists() )
+			return false;
+
+		closeStream();
+		out = new FileOutputStream( file, true );
+		this.header = header.clone();
+
+		// The header goes before the lines that may be pending.
+		final String lines = pending.toString();
+		pending.getBuffer().setLength( 0 );
+		csvWriter.writeNext( header );
+		pending.write( lines );
+		flush();
+		return true;
+	}
+
+	/**
+	 * Returns <code>true</code> if the CSV file exists and has the specified
+	 * header. The header of the file is read only once.
+	 * 
+	 * @param header
+	 *            the header to test.
+	 * @return whether results with this header can be appended to the file.
+	 */
+	public synchronized boolean isCompatible( final String[] header )
+	{
+		if ( !file.exists() )
+			return false;
+
+		if ( this.header == null )
+		{
+			try (CSVReader csvReader = new CSVReaderBuilder( new FileReader( file ) ).build())
+			{
+				final String[] readHeader = csvReader.readNext();
+				this.header = readHeader == null ? new String[ 0 ] : readHeader;
+			}
+			catch ( final IOException | CsvValidationException e )
+			{
+				e.printStackTrace();
+				return false;
+			}
+		}
+		return Arrays.equals( this.header, header );
+	}
+
+	/**
+	 * Appends a line to the CSV file. The line is buffered, and written to
+	 * the file at the latest after the flush interval.
+	 * 
+	 * @param line
+	 *            the values of the line.
+	 * @throws IOException
+	 *             if the buffered lines had to be written and could not be.
+	 *             The line is appended anyway: it stays in the buffer with
+	 *             the other pending lines, and is written with the next
+	 *             flush that succeeds. Use {@link #write(String[])} to know
+	 *             whether the line was written.
+	 */
+	public synchronized void append( final String[] line ) throws IOException
+	{
+		final CSVResultsSink sink = active();
+		if ( sink != this )
+		{
+			sink.append( line );
+			return;
+		}
+
+		csvWriter.writeNext( line );
+		if ( pending.getBuffer().length() >= BUFFER_SIZE )
+			flush();
+	}
+
+	/**
+	 * Appends a line to the CSV file and writes it at once, along with the
+	 * lines already buffered. If the lines cannot be written, the specified
+	 * line is removed from the buffer, so that the caller can record the
+	 * failure without the line being written later.
+	 * 
+	 * @param line
+	 *            the values of the line.
+	 * @throws IOException
+	 *             if the line cannot be written.
+	 */
+	public synchronized void write( final String[] line ) throws IOException
+	{
+		final CSVResultsSink sink = active();
+		if ( sink != this )
+		{
+			sink.write( line );
+			return;
+		}
+
+		final int start = pending.getBuffer().length();
+		csvWriter.writeNext( line );
+		try
+		{
+			flush();
+		}
+		catch ( final IOException e )
+		{
+			pending.getBuffer().setLength( start );
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the buffered lines to the file. They are written at once, so
+	 * that readers of the file only see whole lines. If the file was deleted
+	 * since it was opened, it is created again with its header.
+	 * 
+	 * @throws IOException
+	 *             if the lines cannot be written.
+	 */
+	public synchronized void flush() throws IOException
+	{
+		if ( pending.getBuffer().length() == 0 )
+			return;
+
+		if ( !file.exists() && header != null )
+		{
+			// Deleted since: start again with the header.
+			createIfAbsent( header );
+			return;
+		}
+		if ( out == null )
+			out = new FileOutputStream( file, true );
+
+		out.write( pending.toString().getBytes( Charset.defaultCharset() ) );
+		pending.getBuffer().setLength( 0 );
+		unsynced = true;
+	}
+
+	/**
+	 * Writes the buffered lines to the file and syncs it to the disk.
+	 * 
+	 * @throws IOException
+	 *             if the lines cannot be written.
+	 */
+	public synchronized void sync() throws IOException
+	{
+		flush();
+		if ( out == null || !unsynced )
+			return;
+		out.getFD().sync();
+		unsynced = false;
+	}
+
+	/**
+	 * Flushes, syncs and closes the file. It is opened again if another line
+	 * is appended.
+	 */
+	public synchronized void close()
+	{
+		try
+		{
+			sync();
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+		}
+		closeStream();
+	}
+
+	private void closeStream()
+	{
+		if ( out == null )
+			return;
+		try
+		{
+			out.close();
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+		}
+		out = null;
+		unsynced = false;
+	}
+}
@@ -0,0 +1,351 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.features.FeatureFilter;
+import fiji.plugin.trackmate.io.TmXmlReader;
+import fiji.plugin.trackmate.io.TmXmlWriter;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import net.imglib2.util.ValuePair;
+
+/**
+ * An on-disk cache for detection results.
+ * <p>
+ * The cache stores the spots obtained after detection and spot filtering as
+ * TrackMate XML files, along with the time it took to compute them. Entries
+ * are keyed by a hash of the image content and calibration, of the detector
+ * key and settings, and of the spot filters. The cache is capped in size: when
+ * it grows larger than the specified maximal size, the least recently used
+ * entries are deleted.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class DetectionCache
+{
+
+	/**
+	 * Name of the folder in which the cache is stored, in the results folder.
+	 */
+	public static final String CACHE_FOLDER_NAME = "DetectionCache";
+
+	/**
+	 * Maximal size of the cache suggested when it is enabled, in bytes. The
+	 * cache is disabled by default.
+	 */
+	public static final long DEFAULT_MAX_SIZE = 2l * 1024l * 1024l * 1024l;
+
+	private static final String EXTENSION = ".xml";
+
+	private static final String TIMING_PREFIX = "DETECTION_TIME=";
+
+	private final File folder;
+
+	private final long maxSize;
+
+	/**
+	 * Hash of the image content, computed once when first needed.
+	 */
+	private String imageHash;
+
+	private ImagePlus hashedImage;
+
+	/**
+	 * Creates a detection cache that stores its entries in the specified
+	 * folder.
+	 * 
+	 * @param folder
+	 *            the folder to store entries in. Created if it does not exist.
+	 * @param maxSize
+	 *            the maximal size of the cache on disk, in bytes.
+	 */
+	public DetectionCache( final File folder, final long maxSize )
+	{
+		this.folder = folder;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns the folder in which the entries of this cache are stored.
+	 * 
+	 * @return the cache folder.
+	 */
+	public File getFolder()
+	{
+		return folder;
+	}
+
+	/**
+	 * Returns the maximal size of this cache on disk, in bytes.
+	 * 
+	 * @return the maximal size.
+	 */
+	public long getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * Returns the detection results stored for the specified settings, or
+	 * <code>null</code> if they cannot be found in the cache.
+	 * 
+	 * @param settings
+	 *            the detection settings.
+	 * @return a new model containing the spots and the detection timing in
+	 *         seconds, or <code>null</code>.
+	 */
+	public ValuePair< Model, Double > get( final Settings settings )
+	{
+		final File file = fileFor( settings );
+		if ( !file.isFile() )
+			return null;
+
+		final TmXmlReader reader = new TmXmlReader( file );
+		if ( !reader.isReadingOk() )
+			return null;
+
+		final Model model = reader.getModel();
+		if ( !reader.isReadingOk() )
+			return null;
+
+		double timing = Double.NaN;
+		final String log = reader.getLog();
+		if ( log != null && log.startsWith( TIMING_PREFIX ) )
+		{
+			try
+			{
+				timing = Double.parseDouble( log.substring( TIMING_PREFIX.length() ).trim() );
+			}
+			catch ( final NumberFormatException e )
+			{}
+		}
+
+		// Mark as recently used.
+		file.setLastModified( System.currentTimeMillis() );
+		return new ValuePair<>( model, Double.valueOf( timing ) );
+	}
+
+	/**
+	 * Stores the detection results obtained with the specified settings.
+	 * 
+	 * @param settings
+	 *            the detection settings.
+	 * @param model
+	 *            the model containing the spots after detection and spot
+	 *            filtering.
+	 * @param detectionTiming
+	 *            the time it took to compute them, in seconds.
+	 * @throws IOException
+	 *             if the cache entry cannot be written.
+	 */
+	public void put( final Settings settings, final Model model, final double detectionTiming ) throws IOException
+	{
+		if ( !folder.isDirectory() && !folder.mkdirs() )
+			throw new IOException( "Could not create the detection cache folder " + folder );
+
+		final File file = fileFor( settings );
+		final File tmp = File.createTempFile( "entry", ".tmp", folder );
+		try
+		{
+			final TmXmlWriter writer = new TmXmlWriter( tmp, Logger.VOID_LOGGER );
+			writer.appendLog( TIMING_PREFIX + detectionTiming );
+			writer.appendModel( model );
+			writer.writeToFile();
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		finally
+		{
+			tmp.delete();
+		}
+		evict();
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache is smaller
+	 * than its maximal size.
+	 */
+	private synchronized void evict()
+	{
+		final File[] files = folder.listFiles( ( d, name ) -> name.endsWith( EXTENSION ) );
+		if ( files == null )
+			return;
+
+		long size = 0;
+		for ( final File file : files )
+			size += file.length();
+		if ( size <= maxSize )
+			return;
+
+		Arrays.sort( files, Comparator.comparingLong( File::lastModified ) );
+		for ( final File file : files )
+		{
+			if ( size <= maxSize )
+				break;
+			final long length = file.length();
+			if ( file.delete() )
+				size -= length;
+		}
+	}
+
+	private File fileFor( final Settings settings )
+	{
+		return new File( folder, key( settings ) + EXTENSION );
+	}
+
+	/**
+	 * Returns the key of the cache entry for the specified settings.
+	 * 
+	 * @param settings
+	 *            the detection settings.
+	 * @return the key, as a hexadecimal string.
+	 */
+	public String key( final Settings settings )
+	{
+		final StringBuilder str = new StringBuilder();
+		str.append( imageHash( settings.imp ) ).append( '\n' );
+
+		// Crop and ROI.
+		str.append( settings.xstart ).append( ',' ).append( settings.xend ).append( ',' )
+				.append( settings.ystart ).append( ',' ).append( settings.yend ).append( ',' )
+				.append( settings.zstart ).append( ',' ).append( settings.zend ).append( ',' )
+				.append( settings.tstart ).append( ',' ).append( settings.tend ).append( '\n' );
+		final Roi roi = settings.roi;
+		if ( roi != null )
+		{
+			final int[] xs = roi.getPolygon().xpoints;
+			final int[] ys = roi.getPolygon().ypoints;
+			str.append( Arrays.toString( xs ) ).append( Arrays.toString( ys ) );
+		}
+		str.append( '\n' );
+
+		// Detector.
+		str.append( settings.detectorFactory.getKey() ).append( '\n' );
+		str.append( sorted( settings.detectorSettings ) ).append( '\n' );
+
+		// Spot filters.
+		str.append( settings.initialSpotFilterValue ).append( '\n' );
+		for ( final FeatureFilter filter : settings.getSpotFilters() )
+			str.append( filter.feature ).append( ',' ).append( filter.value ).append( ',' ).append( filter.isAbove ).append( '\n' );
+
+		return toHex( digest().digest( str.toString().getBytes( StandardCharsets.UTF_8 ) ) );
+	}
+
+	private static final String sorted( final Map< String, Object > map )
+	{
+		final Map< String, String > out = new TreeMap<>();
+		map.forEach( ( k, v ) -> out.put( k, String.valueOf( v ) ) );
+		return out.toString();
+	}
+
+	/**
+	 * Hashes the content and calibration of the specified image. The result
+	 * is computed only once per image.
+	 */
+	private synchronized String imageHash( final ImagePlus imp )
+	{
+		if ( imageHash != null && hashedImage == imp )
+			return imageHash;
+
+		final MessageDigest md = digest();
+		final Calibration cal = imp.getCalibration();
+		md.update( ( imp.getWidth() + "," + imp.getHeight() + ","
+				+ imp.getNChannels() + "," + imp.getNSlices() + "," + imp.getNFrames() + ","
+				+ cal.pixelWidth + "," + cal.pixelHeight + "," + cal.pixelDepth + "," + cal.frameInterval )
+						.getBytes( StandardCharsets.UTF_8 ) );
+
+		final ImageStack stack = imp.getStack();
+		for ( int i = 1; i <= stack.getSize(); i++ )
+		{
+			final Object pixels = stack.getPixels( i );
+			final ByteBuffer buffer;
+			if ( pixels instanceof byte[] )
+			{
+				buffer = ByteBuffer.wrap( ( byte[] ) pixels );
+			}
+			else if ( pixels instanceof short[] )
+			{
+				final short[] arr = ( short[] ) pixels;
+				buffer = ByteBuffer.allocate( arr.length * 2 ).order( ByteOrder.LITTLE_ENDIAN );
+				buffer.asShortBuffer().put( arr );
+			}
+			else if ( pixels instanceof float[] )
+			{
+				final float[] arr = ( float[] ) pixels;
+				buffer = ByteBuffer.allocate( arr.length * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+				buffer.asFloatBuffer().put( arr );
+			}
+			else if ( pixels instanceof int[] )
+			{
+				final int[] arr = ( int[] ) pixels;
+				buffer = ByteBuffer.allocate( arr.length * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+				buffer.asIntBuffer().put( arr );
+			}
+			else
+			{
+				throw new IllegalArgumentException( "Unsupported pixel type: " + pixels );
+			}
+			md.update( buffer );
+		}
+		imageHash = toHex( md.digest() );
+		hashedImage = imp;
+		return imageHash;
+	}
+
+	private static final MessageDigest digest()
+	{
+		try
+		{
+			return MessageDigest.getInstance( "SHA-256" );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	private static final String toHex( final byte[] bytes )
+	{
+		final StringBuilder str = new StringBuilder( bytes.length * 2 );
+		for ( final byte b : bytes )
+			str.append( String.format( "%02x", b ) );
+		return str.toString();
+	}
+}
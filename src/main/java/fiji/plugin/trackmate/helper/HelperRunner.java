@@ -27,14 +27,25 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import org.scijava.Cancelable;
 
+import fiji.plugin.trackmate.FeatureModel;
 import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.helper.ctc.CTCGroundTruthCache;
 import fiji.plugin.trackmate.helper.ctc.CTCTrackingMetricsType;
 import fiji.plugin.trackmate.helper.model.ParameterSweepModel;
 import fiji.plugin.trackmate.helper.model.ParameterSweepModelIO;
@@ -45,9 +56,10 @@ import fiji.plugin.trackmate.io.TmXmlWriter;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.IJ;
 import ij.ImagePlus;
+import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.util.ValuePair;
 
-public class HelperRunner implements Runnable, Cancelable
+public class HelperRunner implements Runnable, Cancelable, MultiThreaded
 {
 
 	private final String gtPath;
@@ -74,6 +86,14 @@ public class HelperRunner implements Runnable, Cancelable
 
 	private final String modelPath;
 
+	private int numThreads;
+
+	private DetectionCache detectionCache;
+
+	private final long csvFlushInterval;
+
+	private final long csvSyncInterval;
+
 	private HelperRunner(
 			final TrackingMetricsType type,
 			final String gtPath,
@@ -84,7 +104,11 @@ public class HelperRunner implements Runnable, Cancelable
 			final String savePath,
 			final Logger batchLogger,
 			final Logger trackmateLogger,
-			final boolean saveTrackMateFiles )
+			final boolean saveTrackMateFiles,
+			final int numThreads,
+			final long detectionCacheMaxSize,
+			final long csvFlushInterval,
+			final long csvSyncInterval )
 	{
 		this.type = type;
 		this.gtPath = gtPath;
@@ -96,6 +120,10 @@ public class HelperRunner implements Runnable, Cancelable
 		this.batchLogger = batchLogger;
 		this.trackmateLogger = trackmateLogger;
 		this.saveTrackMateFiles = saveTrackMateFiles;
+		this.numThreads = numThreads;
+		setDetectionCacheMaxSize( detectionCacheMaxSize );
+		this.csvFlushInterval = csvFlushInterval;
+		this.csvSyncInterval = csvSyncInterval;
 		this.crawler = new ResultsCrawler( type, batchLogger );
 		crawler.reset();
 		try
@@ -215,15 +243,62 @@ public class HelperRunner implements Runnable, Cancelable
 		this.saveTrackMateFiles = saveTrackMateFiles;
 	}
 
+	/**
+	 * Sets the maximal size of the on-disk cache of detection results, in
+	 * bytes. The cache is stored in the {@value DetectionCache#CACHE_FOLDER_NAME}
+	 * sub-folder of the results folder, and lets sweeps that test the same
+	 * detector settings again skip the detection. A size of 0 or less
+	 * disables the cache, which is the default. The cache files already
+	 * written are not deleted.
+	 * 
+	 * @param detectionCacheMaxSize
+	 *            the maximal size of the cache in bytes.
+	 */
+	public void setDetectionCacheMaxSize( final long detectionCacheMaxSize )
+	{
+		// Keep the image hash computed by the current cache.
+		if ( detectionCache != null && detectionCache.getMaxSize() == detectionCacheMaxSize )
+			return;
+
+		this.detectionCache = ( detectionCacheMaxSize > 0 )
+				? new DetectionCache( new File( savePath, DetectionCache.CACHE_FOLDER_NAME ), detectionCacheMaxSize )
+				: null;
+	}
+
 	@Override
 	public void run()
 	{
 		cancelReason = null;
+		if ( detectionCache != null )
+			batchLogger.log( String.format( "Caching detection results in %s, up to %d MB. "
+					+ "Uncheck the detection cache option to disable it.\n",
+					detectionCache.getFolder(), detectionCache.getMaxSize() / ( 1024l * 1024l ) ) );
+		CSVResultsSink.setFlushInterval( csvFlushInterval );
+		CSVResultsSink.setSyncInterval( csvSyncInterval );
+		CTCGroundTruthCache.beginSweep();
+		try
+		{
+			if ( numThreads > 1 )
+				runParallel();
+			else
+				runSequential();
+		}
+		finally
+		{
+			CTCGroundTruthCache.endSweep();
+			// Write the last results and release the CSV files.
+			CSVResultsSink.closeAll();
+		}
+	}
+
+	private void runSequential()
+	{
 		final int count = model.count();
 
 		final MetricsRunner runner = type.runner( gtPath, savePath );
 		runner.setBatchLogger( batchLogger );
 		runner.setTrackmateLogger( trackmateLogger );
+		runner.setDetectionCache( detectionCache );
 
 		final Settings base = new Settings( imp );
 		base.setSpotFilters( model.getSpotFilters() );
@@ -307,41 +382,358 @@ public class HelperRunner implements Runnable, Cancelable
 
 						// Save TrackMate file if required.
 						if ( saveTrackMateFiles )
-						{
-							final String nameGen = "TrackMate_%s_%s_%03d.xml";
-							int i = 1;
-							File trackmateFile;
-							do
-							{
-								trackmateFile = new File( savePath,
-										String.format( nameGen,
-												settings.detectorFactory.getKey(),
-												settings.trackerFactory.getKey(),
-												i++ ) );
-							}
-							while ( trackmateFile.exists() );
+							saveTrackMateFile( trackmate );
+					}
+				}
+			}
+		}
+	}
 
-							final TmXmlWriter writer = new TmXmlWriter( trackmateFile, Logger.VOID_LOGGER );
-							writer.appendModel( trackmate.getModel() );
-							writer.appendSettings( trackmate.getSettings() );
-							writer.appendGUIState( "ConfigureViews" );
-							try
-							{
-								writer.writeToFile();
-								batchLogger.log( "Saved results to TrackMate file: " + trackmateFile + "\n" );
-							}
-							catch ( final IOException e )
-							{
-								batchLogger.error( e.getMessage() );
-								e.printStackTrace();
-							}
+	/**
+	 * Runs the parameter sweep with a pool of {@link #getNumThreads()} workers.
+	 * <p>
+	 * Each detector setting is processed in its own task. Once detection is
+	 * done, every tracker setting that was not tested yet is submitted as a
+	 * separate task, working on its own copy of the detection results. Each
+	 * worker thread uses its own {@link MetricsRunner}. Tracking tasks run
+	 * before detection tasks, so that the detection results are released
+	 * before new ones are computed.
+	 */
+	private void runParallel()
+	{
+		final int count = model.count();
+		final AtomicInteger progress = new AtomicInteger( 0 );
+
+		final Settings base = new Settings( imp );
+		base.setSpotFilters( model.getSpotFilters() );
+		base.setTrackFilters( model.getTrackFilters() );
+
+		// Split the available cores between the workers.
+		final int trackmateNumThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() / numThreads );
+		final ThreadLocal< MetricsRunner > runners = ThreadLocal.withInitial( () -> {
+			final MetricsRunner runner = type.runner( gtPath, savePath );
+			runner.setBatchLogger( batchLogger );
+			runner.setTrackmateLogger( trackmateLogger );
+			runner.setNumThreads( trackmateNumThreads );
+			runner.setDetectionCache( detectionCache );
+			return runner;
+		} );
+
+		batchLogger.log( "Running " + count + " tests with " + numThreads + " workers.\n" );
+		final SweepExecutor executor = new SweepExecutor( numThreads );
+		try
+		{
+			for ( final DetectorSweepModel detectorModel : model.getActiveDetectors() )
+			{
+				final Iterator< Settings > dit = detectorModel.iterator( base, targetChannel );
+				while ( dit.hasNext() )
+				{
+					final Settings ds = dit.next();
+					if ( isCanceled() )
+						break;
+
+					executor.submit( SweepExecutor.DETECTION, () -> {
+						try
+						{
+							execDetectorSettings( ds, runners, executor, progress, count );
 						}
-					}
+						catch ( final RuntimeException e )
+						{
+							batchLogger.error( "Error running TrackMate with these parameters:\n" + e.getMessage() + '\n' );
+							e.printStackTrace();
+						}
+					} );
+				}
+			}
+			// Wait for all tasks, including the tracking ones, to complete.
+			executor.awaitCompletion();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	private void execDetectorSettings(
+			final Settings ds,
+			final ThreadLocal< MetricsRunner > runners,
+			final SweepExecutor executor,
+			final AtomicInteger progress,
+			final int count )
+	{
+		// Collect the tracker settings that were not tested yet.
+		final List< Settings > toTest = new ArrayList<>();
+		for ( final TrackerSweepModel trackerModel : model.getActiveTracker() )
+		{
+			final Iterator< Settings > tit = trackerModel.iterator( ds, targetChannel );
+			while ( tit.hasNext() )
+			{
+				final Settings dts = tit.next();
+				if ( isCanceled() )
+					return;
+
+				if ( crawler.isSettingsPresent( dts ) )
+				{
+					batchLogger.setProgress( ( double ) progress.incrementAndGet() / count );
+					batchLogger.log( "Settings for detector " + dts.detectorFactory.getKey() + " with parameters:\n"
+							+ TMUtils.echoMap( dts.detectorSettings, 2 )
+							+ "and tracker " + dts.trackerFactory.getKey() + " with parameters:\n"
+							+ TMUtils.echoMap( dts.trackerSettings, 2 )
+							+ "were already tested. Skipping.\n" );
+					continue;
+				}
+				toTest.add( dts );
+			}
+		}
+		if ( toTest.isEmpty() || isCanceled() )
+			return;
+
+		batchLogger.setStatus( ds.detectorFactory.getName() );
+		final MetricsRunner runner = runners.get();
+		final ValuePair< TrackMate, Double > detectionResult = runner.execDetection( toTest.get( 0 ) );
+
+		// Detection failed?
+		if ( null == detectionResult || null == detectionResult.getA() )
+		{
+			batchLogger.error( "Error running TrackMate with these parameters.\nSkipping.\n" );
+			batchLogger.setProgress( ( double ) progress.addAndGet( toTest.size() ) / count );
+			return;
+		}
+		final TrackMate detection = detectionResult.getA();
+		final double detectionTiming = detectionResult.getB();
+
+		// Got 0 spots to track?
+		if ( detection.getModel().getSpots().getNSpots( true ) == 0 )
+		{
+			batchLogger.log( "Settings result in having 0 spots to track.\nSkipping.\n" );
+			batchLogger.setProgress( ( double ) progress.addAndGet( toTest.size() ) / count );
+			return;
+		}
+
+		for ( final Settings dts : toTest )
+		{
+			if ( isCanceled() )
+				return;
+
+			executor.submit( SweepExecutor.TRACKING, () -> {
+				try
+				{
+					if ( isCanceled() )
+						return;
+
+					batchLogger.setProgress( ( double ) progress.incrementAndGet() / count );
+					final MetricsRunner localRunner = runners.get();
+					final TrackMate trackmate = copyDetection( detection, dts );
+					trackmate.setNumThreads( localRunner.getNumThreads() );
+					batchLogger.setStatus( dts.detectorFactory.getName() + " + " + dts.trackerFactory.getName() );
+
+					// Exec tracking.
+					final double trackingTiming = localRunner.execTracking( trackmate );
+
+					// Perform and save metrics measurements.
+					localRunner.performMetricsMeasurements( trackmate, detectionTiming, trackingTiming );
+
+					// Save TrackMate file if required.
+					if ( saveTrackMateFiles )
+						saveTrackMateFile( trackmate );
+				}
+				catch ( final RuntimeException e )
+				{
+					batchLogger.error( "Error running TrackMate with these parameters:\n" + e.getMessage() + '\n' );
+					e.printStackTrace();
+				}
+			} );
+		}
+	}
+
+	/**
+	 * Runs the tasks of a parameter sweep on a fixed number of workers.
+	 * <p>
+	 * Tracking tasks are run before detection tasks, so that at most about one
+	 * detection result per worker is kept in memory waiting for its trackers.
+	 * Tasks with the same priority are run in the order they were submitted.
+	 * The pending tasks are counted, including those submitted by other tasks,
+	 * so that the caller can wait for all of them.
+	 */
+	private static final class SweepExecutor
+	{
+
+		private static final int TRACKING = 0;
+
+		private static final int DETECTION = 1;
+
+		private final ThreadPoolExecutor executor;
+
+		private final AtomicLong sequence = new AtomicLong();
+
+		/**
+		 * Number of tasks submitted and not completed yet. Guarded by this.
+		 */
+		private long pending = 0;
+
+		private SweepExecutor( final int numThreads )
+		{
+			this.executor = new ThreadPoolExecutor( numThreads, numThreads,
+					0l, TimeUnit.MILLISECONDS,
+					new PriorityBlockingQueue< Runnable >() );
+		}
+
+		private void submit( final int priority, final Runnable task )
+		{
+			synchronized ( this )
+			{
+				pending++;
+			}
+			executor.execute( new Task( priority, sequence.getAndIncrement(), task ) );
+		}
+
+		private synchronized void done()
+		{
+			pending--;
+			if ( pending == 0 )
+				notifyAll();
+		}
+
+		private synchronized void awaitCompletion() throws InterruptedException
+		{
+			while ( pending > 0 )
+				wait();
+		}
+
+		private void shutdown()
+		{
+			executor.shutdown();
+		}
+
+		private final class Task implements Runnable, Comparable< Task >
+		{
+
+			private final int priority;
+
+			private final long order;
+
+			private final Runnable task;
+
+			private Task( final int priority, final long order, final Runnable task )
+			{
+				this.priority = priority;
+				this.order = order;
+				this.task = task;
+			}
+
+			@Override
+			public void run()
+			{
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					done();
 				}
 			}
+
+			@Override
+			public int compareTo( final Task o )
+			{
+				if ( priority != o.priority )
+					return Integer.compare( priority, o.priority );
+				return Long.compare( order, o.order );
+			}
+		}
+	}
+
+	/**
+	 * Creates a new TrackMate instance, configured with the specified tracker
+	 * settings, and with a model that contains the detection results of the
+	 * specified TrackMate instance. This way several trackers can run
+	 * concurrently on the same detection results.
+	 */
+	private TrackMate copyDetection( final TrackMate detection, final Settings dts )
+	{
+		final Settings settings = detection.getSettings().copyOn( imp );
+		settings.trackerFactory = dts.trackerFactory;
+		settings.trackerSettings = dts.trackerSettings;
+
+		final Model source = detection.getModel();
+		final Model model = new Model();
+		model.setLogger( trackmateLogger );
+		model.setPhysicalUnits( source.getSpaceUnits(), source.getTimeUnits() );
+		final FeatureModel sfm = source.getFeatureModel();
+		model.getFeatureModel().declareSpotFeatures(
+				sfm.getSpotFeatures(),
+				sfm.getSpotFeatureNames(),
+				sfm.getSpotFeatureShortNames(),
+				sfm.getSpotFeatureDimensions(),
+				sfm.getSpotFeatureIsInt() );
+		// Spots are not modified by tracking, we can share them.
+		model.setSpots( SpotCollection.fromCollection( source.getSpots().iterable( false ) ), false );
+		return new TrackMate( model, settings );
+	}
+
+	private synchronized void saveTrackMateFile( final TrackMate trackmate )
+	{
+		final Settings settings = trackmate.getSettings();
+		final String nameGen = "TrackMate_%s_%s_%03d.xml";
+		int i = 1;
+		File trackmateFile;
+		do
+		{
+			trackmateFile = new File( savePath,
+					String.format( nameGen,
+							settings.detectorFactory.getKey(),
+							settings.trackerFactory.getKey(),
+							i++ ) );
+		}
+		while ( trackmateFile.exists() );
+
+		final TmXmlWriter writer = new TmXmlWriter( trackmateFile, Logger.VOID_LOGGER );
+		writer.appendModel( trackmate.getModel() );
+		writer.appendSettings( trackmate.getSettings() );
+		writer.appendGUIState( "ConfigureViews" );
+		try
+		{
+			writer.writeToFile();
+			batchLogger.log( "Saved results to TrackMate file: " + trackmateFile + "\n" );
+		}
+		catch ( final IOException e )
+		{
+			batchLogger.error( e.getMessage() );
+			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Sets the number of workers to use to run the parameter sweep. If larger
+	 * than 1, several detector settings and several tracker settings are
+	 * tested concurrently. With 1, the tests are run one after another.
+	 * 
+	 * @param numThreads
+	 *            the number of workers.
+	 */
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		setNumThreads( Runtime.getRuntime().availableProcessors() );
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
 	@Override
 	public void cancel( final String cancelReason )
 	{
@@ -394,6 +786,14 @@ public class HelperRunner implements Runnable, Cancelable
 		
 		private boolean saveTrackMateFiles = false;
 
+		private int numThreads = 1;
+
+		private long detectionCacheMaxSize = 0l;
+
+		private long csvFlushInterval = CSVResultsSink.DEFAULT_FLUSH_INTERVAL;
+
+		private long csvSyncInterval = CSVResultsSink.DEFAULT_SYNC_INTERVAL;
+
 		private String errorMessage;
 
 		/**
@@ -578,6 +978,71 @@ public class HelperRunner implements Runnable, Cancelable
 			return this;
 		}
 
+		/**
+		 * Sets the number of workers to use to run the parameter sweep. With
+		 * more than 1 worker, several detector and tracker settings are
+		 * tested concurrently.
+		 * 
+		 * @param numThreads
+		 *            the number of workers.
+		 * @return this builder
+		 */
+		public Builder numThreads( final int numThreads )
+		{
+			this.numThreads = Math.max( 1, numThreads );
+			return this;
+		}
+
+		/**
+		 * Sets the maximal size of the on-disk cache of detection results, in
+		 * bytes. The cache is stored in the results folder. A size of 0
+		 * disables the cache, which is the default.
+		 * {@link DetectionCache#DEFAULT_MAX_SIZE} is a sensible size.
+		 * 
+		 * @param detectionCacheMaxSize
+		 *            the maximal size of the cache in bytes.
+		 * @return this builder
+		 */
+		public Builder detectionCacheMaxSize( final long detectionCacheMaxSize )
+		{
+			this.detectionCacheMaxSize = detectionCacheMaxSize;
+			return this;
+		}
+
+		/**
+		 * Sets the maximal delay before a result line is written to its CSV
+		 * file, in milliseconds. The CSV files are shared by all the sweeps
+		 * running in this JVM, so the last sweep started sets the delay for
+		 * all of them. Defaults to
+		 * {@link CSVResultsSink#DEFAULT_FLUSH_INTERVAL}.
+		 * 
+		 * @param csvFlushInterval
+		 *            the delay in milliseconds.
+		 * @return this builder
+		 */
+		public Builder csvFlushInterval( final long csvFlushInterval )
+		{
+			this.csvFlushInterval = csvFlushInterval;
+			return this;
+		}
+
+		/**
+		 * Sets the interval between syncs of the CSV files to the disk, in
+		 * milliseconds. If 0 or negative, the files are synced only when the
+		 * sweep ends. The CSV files are shared by all the sweeps running in
+		 * this JVM, so the last sweep started sets the interval for all of
+		 * them. Defaults to {@link CSVResultsSink#DEFAULT_SYNC_INTERVAL}.
+		 * 
+		 * @param csvSyncInterval
+		 *            the interval in milliseconds.
+		 * @return this builder
+		 */
+		public Builder csvSyncInterval( final long csvSyncInterval )
+		{
+			this.csvSyncInterval = csvSyncInterval;
+			return this;
+		}
+
 		public HelperRunner get()
 		{
 			boolean ok = true;
@@ -699,7 +1164,11 @@ public class HelperRunner implements Runnable, Cancelable
 					savePath,
 					batchLogger,
 					trackmateLogger,
-					saveTrackMateFiles );
+					saveTrackMateFiles,
+					numThreads,
+					detectionCacheMaxSize,
+					csvFlushInterval,
+					csvSyncInterval );
 		}
 
 		public String getErrorMessage()
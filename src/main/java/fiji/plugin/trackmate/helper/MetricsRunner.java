@@ -22,21 +22,19 @@
 package fiji.plugin.trackmate.helper;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.IntSummaryStatistics;
+import java.util.List;
+import java.util.Map;
 import java.util.function.BiFunction;
 
-import com.opencsv.CSVReader;
-import com.opencsv.CSVReaderBuilder;
-import com.opencsv.CSVWriter;
-import com.opencsv.exceptions.CsvValidationException;
-
 import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.TrackMate;
 import fiji.plugin.trackmate.TrackModel;
@@ -68,6 +66,23 @@ public abstract class MetricsRunner
 	 */
 	private final BiFunction< String, Integer, String > nameGenWithID;
 
+	/**
+	 * The CSV file found for each image name and CSV header, so that we do not
+	 * search for it again for every settings.
+	 */
+	private final Map< List< String >, File > csvFiles = new HashMap<>();
+
+	/**
+	 * Number of threads used by the TrackMate instances created by this
+	 * runner.
+	 */
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Cache for detection results. May be <code>null</code>.
+	 */
+	private DetectionCache detectionCache;
+
 	public MetricsRunner( final Path resultsRootPath, final TrackingMetricsType type )
 	{
 		this.resultsRootPath = resultsRootPath;
@@ -84,24 +99,51 @@ public abstract class MetricsRunner
 		batchLogger.log( settings.detectorFactory.getName(), Logger.BLUE_COLOR );
 		batchLogger.log( " with settings:\n" );
 		batchLogger.log( TMUtils.echoMap( settings.detectorSettings, 2 ) );
-	
-		final long start = System.currentTimeMillis();
-		final TrackMate trackmate = new TrackMate( settings );
-		trackmate.getModel().setLogger( trackmateLogger );
-		if ( !trackmate.execDetection()
-				|| !trackmate.execInitialSpotFiltering()
-				|| !trackmate.computeSpotFeatures( true )
-				|| !trackmate.execSpotFiltering( true ) )
+
+		final TrackMate trackmate;
+		final double detectionTiming;
+		final ValuePair< Model, Double > cached = ( detectionCache == null ) ? null : detectionCache.get( settings );
+		if ( cached != null )
 		{
-			batchLogger.error( "Error in the detection step:\n" + trackmate.getErrorMessage() );
-			return null;
+			trackmate = new TrackMate( cached.getA(), settings );
+			trackmate.getModel().setLogger( trackmateLogger );
+			trackmate.setNumThreads( numThreads );
+			detectionTiming = cached.getB();
+			batchLogger.log( String.format( "Loaded detection results from cache (computed in %.1f s).\n", detectionTiming ) );
 		}
-		final long end = System.currentTimeMillis();
-		final double detectionTiming = ( end - start ) / 1000.;
-	
+		else
+		{
+			final long start = System.currentTimeMillis();
+			trackmate = new TrackMate( settings );
+			trackmate.getModel().setLogger( trackmateLogger );
+			trackmate.setNumThreads( numThreads );
+			if ( !trackmate.execDetection()
+					|| !trackmate.execInitialSpotFiltering()
+					|| !trackmate.computeSpotFeatures( true )
+					|| !trackmate.execSpotFiltering( true ) )
+			{
+				batchLogger.error( "Error in the detection step:\n" + trackmate.getErrorMessage() );
+				return null;
+			}
+			final long end = System.currentTimeMillis();
+			detectionTiming = ( end - start ) / 1000.;
+			batchLogger.log( String.format( "Detection done in %.1f s.\n", detectionTiming ) );
+
+			if ( detectionCache != null )
+			{
+				try
+				{
+					detectionCache.put( settings, trackmate.getModel(), detectionTiming );
+				}
+				catch ( final IOException e )
+				{
+					batchLogger.error( "Could not store detection results in cache:\n" + e.getMessage() + '\n' );
+				}
+			}
+		}
+
 		final int nVisibleSpots = trackmate.getModel().getSpots().getNSpots( true );
 		final int nTotalSpots = trackmate.getModel().getSpots().getNSpots( false );
-		batchLogger.log( String.format( "Detection done in %.1f s.\n", ( end - start ) / 1e3f ) );
 		batchLogger.log( String.format( "Found %d visible spots over %d in total.\n",
 				nVisibleSpots, nTotalSpots ) );
 
@@ -160,7 +202,25 @@ public abstract class MetricsRunner
 		// Prepare CSV headers.
 		final String[] csvHeader1 = toCSVHeader( settings );
 		final String[] csvHeader = type.concatWithHeader( csvHeader1 );
-	
+
+		final List< String > key = new ArrayList<>( csvHeader.length + 1 );
+		key.add( imFileName );
+		key.addAll( Arrays.asList( csvHeader ) );
+		synchronized ( csvFiles )
+		{
+			final File cached = csvFiles.get( key );
+			if ( cached != null && CSVResultsSink.get( cached ).isCompatible( csvHeader ) )
+				return cached;
+
+			final File csvFile = findSuitableCSVFile( imFileName, csvHeader );
+			if ( csvFile != null )
+				csvFiles.put( key, csvFile );
+			return csvFile;
+		}
+	}
+
+	private File findSuitableCSVFile( final String imFileName, final String[] csvHeader )
+	{
 		// Init.
 		int i = 0;
 	
@@ -168,30 +228,26 @@ public abstract class MetricsRunner
 		{
 			i++;
 			final File csvFile = getCSVFile( resultsRootPath.toString(), imFileName, i );
+			final CSVResultsSink sink = CSVResultsSink.get( csvFile );
 	
-			// Does the target CSV file exist?
-			if ( !csvFile.exists() )
+			// Does the target CSV file exist? The sink creates it atomically.
+			try
 			{
-				try (CSVWriter csvWriter = new CSVWriter( new FileWriter( csvFile ),
-						CSVWriter.DEFAULT_SEPARATOR,
-						CSVWriter.NO_QUOTE_CHARACTER,
-						CSVWriter.DEFAULT_ESCAPE_CHARACTER,
-						CSVWriter.DEFAULT_LINE_END ))
+				if ( sink.createIfAbsent( csvHeader ) )
 				{
-					// CSV header.
-					csvWriter.writeNext( csvHeader );
+					batchLogger.log( "CSV file " + csvFile + " does not exist. Created it.\n" );
+					return csvFile;
 				}
-				catch ( final IOException e )
-				{
-					batchLogger.error( "Cannot open CSV file " + csvFile + " for writing:\n" + e.getMessage() );
-					e.printStackTrace();
-				}
-				batchLogger.log( "CSV file " + csvFile + " does not exist. Created it.\n" );
+			}
+			catch ( final IOException e )
+			{
+				batchLogger.error( "Cannot open CSV file " + csvFile + " for writing:\n" + e.getMessage() );
+				e.printStackTrace();
 				return csvFile;
 			}
 	
 			// If yes, is it compatible for appending?
-			if ( csvFileIsCompatible( settings, csvFile ) )
+			if ( sink.isCompatible( csvHeader ) )
 			{
 				batchLogger.log( "Found a compatible CSV file for appending: " + csvFile + '\n' );
 				return csvFile;
@@ -239,16 +295,15 @@ public abstract class MetricsRunner
 		final String[] line1 = toCSVLine( settings, csvHeader );
 		final String[] line = metrics.concatWithCSVLine( line1 );
 
-		try (CSVWriter csvWriter = new CSVWriter( new FileWriter( csvFile, true ),
-				CSVWriter.DEFAULT_SEPARATOR,
-				CSVWriter.NO_QUOTE_CHARACTER,
-				CSVWriter.DEFAULT_ESCAPE_CHARACTER,
-				CSVWriter.DEFAULT_LINE_END ))
+		try
 		{
-			csvWriter.writeNext( line );
+			CSVResultsSink.get( csvFile ).write( line );
 		}
 		catch ( final IOException e )
 		{
+			// The line was not written. Record the test as failed instead.
+			batchLogger.error( "Could not write results to CSV file:\n" + e.getMessage() + '\n' );
+			e.printStackTrace();
 			writeFailedResults( csvFile, settings, csvHeader );
 		}
 	}
@@ -274,13 +329,9 @@ public abstract class MetricsRunner
 		// all NaNs.
 		final TrackingMetrics metrics = new TrackingMetrics( type );
 		final String[] line = metrics.concatWithCSVLine( settingsValueColumns );
-		try (CSVWriter csvWriter = new CSVWriter( new FileWriter( csvFile, true ),
-				CSVWriter.DEFAULT_SEPARATOR,
-				CSVWriter.NO_QUOTE_CHARACTER,
-				CSVWriter.DEFAULT_ESCAPE_CHARACTER,
-				CSVWriter.DEFAULT_LINE_END ))
+		try
 		{
-			csvWriter.writeNext( line );
+			CSVResultsSink.get( csvFile ).write( line );
 		}
 		catch ( final IOException e1 )
 		{
@@ -289,25 +340,6 @@ public abstract class MetricsRunner
 		}
 	}
 
-	private final boolean csvFileIsCompatible( final Settings settings, final File csvFile )
-	{
-		// Prepare CSV headers.
-		final String[] csvHeader1 = toCSVHeader( settings );
-		final String[] csvHeader = type.concatWithHeader( csvHeader1 );
-	
-		try (CSVReader csvReader = new CSVReaderBuilder( new FileReader( csvFile ) ).build())
-		{
-			final String[] readHeader = csvReader.readNext();
-			return Arrays.equals( csvHeader, readHeader );
-		}
-		catch ( final IOException | CsvValidationException e )
-		{
-			batchLogger.error( "Cannot open CSV file " + csvFile + " for reading:\n" + e.getMessage() );
-			e.printStackTrace();
-		}
-		return false;
-	}
-
 	public void setBatchLogger( final Logger batchLogger )
 	{
 		this.batchLogger = batchLogger;
@@ -318,6 +350,37 @@ public abstract class MetricsRunner
 		this.trackmateLogger = trackmateLogger;
 	}
 
+	/**
+	 * Sets the number of threads used by the TrackMate instances created by
+	 * this runner.
+	 * 
+	 * @param numThreads
+	 *            the number of threads.
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/**
+	 * Sets the cache to use for detection results. If not <code>null</code>,
+	 * detection results are loaded from this cache when they are present,
+	 * and stored in it otherwise.
+	 * 
+	 * @param detectionCache
+	 *            the detection cache, or <code>null</code> to always run the
+	 *            detection.
+	 */
+	public void setDetectionCache( final DetectionCache detectionCache )
+	{
+		this.detectionCache = detectionCache;
+	}
+
 	private final File getCSVFile( final String resultsRootPath, final String imageName, final int id )
 	{
 		final Path csvFilePath = Paths.get( resultsRootPath, nameGenWithID.apply( imageName, id ) );
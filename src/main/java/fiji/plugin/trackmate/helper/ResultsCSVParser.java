@@ -0,0 +1,223 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.exceptions.CsvValidationException;
+
+/**
+ * Lean parsing of the results CSV files.
+ * <p>
+ * The results files are written without quote characters, so a line can be
+ * split on the separator alone. Lines that contain a quote character, for
+ * instance because the file was edited with another tool, are parsed with
+ * opencsv.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+final class ResultsCSVParser
+{
+
+	private static final char SEPARATOR = ',';
+
+	private static final char QUOTE = '"';
+
+	/**
+	 * Largest integer up to which all integers can be represented as a double.
+	 */
+	private static final long MAX_EXACT = 1l << 53;
+
+	/**
+	 * Exact powers of ten that can be represented as a double.
+	 */
+	private static final double[] POW10 = new double[ 23 ];
+	static
+	{
+		POW10[ 0 ] = 1.;
+		for ( int i = 1; i < POW10.length; i++ )
+			POW10[ i ] = POW10[ i - 1 ] * 10.;
+	}
+
+	private ResultsCSVParser()
+	{}
+
+	/**
+	 * Splits a CSV line.
+	 * 
+	 * @param line
+	 *            the line, with or without its line end.
+	 * @return the values in the line.
+	 */
+	static String[] split( final String line )
+	{
+		return split( line, 0, line.length() );
+	}
+
+	/**
+	 * Splits the CSV line found in the specified range of a string.
+	 * 
+	 * @param str
+	 *            the string.
+	 * @param from
+	 *            the index of the first character of the line.
+	 * @param to
+	 *            the index after the last character of the line. A carriage
+	 *            return at the end of the line is ignored.
+	 * @return the values in the line.
+	 */
+	static String[] split( final String str, final int from, int to )
+	{
+		if ( to > from && str.charAt( to - 1 ) == '\r' )
+			to--;
+
+		int n = 1;
+		for ( int i = from; i < to; i++ )
+		{
+			final char c = str.charAt( i );
+			if ( c == SEPARATOR )
+				n++;
+			else if ( c == QUOTE )
+				return splitQuoted( str.substring( from, to ) );
+		}
+
+		final String[] out = new String[ n ];
+		int start = from;
+		for ( int k = 0; k < n - 1; k++ )
+		{
+			final int end = str.indexOf( SEPARATOR, start );
+			out[ k ] = str.substring( start, end );
+			start = end + 1;
+		}
+		out[ n - 1 ] = str.substring( start, to );
+		return out;
+	}
+
+	private static String[] splitQuoted( final String line )
+	{
+		try (CSVReader csvReader = new CSVReaderBuilder( new StringReader( line ) ).build())
+		{
+			final String[] out = csvReader.readNext();
+			return ( out == null ) ? new String[] { "" } : out;
+		}
+		catch ( final IOException | CsvValidationException e )
+		{
+			throw new IllegalArgumentException( "Cannot parse CSV line: " + line, e );
+		}
+	}
+
+	/**
+	 * Parses a double value. Returns the same value as
+	 * {@link Double#parseDouble(String)}, and throws the same exceptions.
+	 * <p>
+	 * Plain decimal numbers whose digits fit in 53 bits and with a small
+	 * exponent are converted with a single correctly rounded multiplication or
+	 * division. Other strings are handed to {@link Double#parseDouble(String)}.
+	 * 
+	 * @param str
+	 *            the string to parse.
+	 * @return the double value.
+	 */
+	static double parseDouble( final String str )
+	{
+		final int len = str.length();
+		int i = 0;
+		boolean negative = false;
+		if ( i < len && ( str.charAt( i ) == '-' || str.charAt( i ) == '+' ) )
+		{
+			negative = str.charAt( i ) == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int nDigits = 0;
+		int exponent = 0;
+		boolean hasDigits = false;
+		boolean fraction = false;
+		for ( ; i < len; i++ )
+		{
+			final char c = str.charAt( i );
+			if ( c == '.' && !fraction )
+			{
+				fraction = true;
+				continue;
+			}
+			if ( c < '0' || c > '9' )
+				break;
+
+			hasDigits = true;
+			if ( mantissa != 0 || c != '0' )
+			{
+				if ( ++nDigits > 18 )
+					return Double.parseDouble( str );
+				mantissa = 10 * mantissa + ( c - '0' );
+			}
+			if ( fraction )
+				exponent--;
+		}
+		if ( !hasDigits )
+			return Double.parseDouble( str );
+
+		if ( i < len && ( str.charAt( i ) == 'e' || str.charAt( i ) == 'E' ) )
+		{
+			i++;
+			boolean negativeExp = false;
+			if ( i < len && ( str.charAt( i ) == '-' || str.charAt( i ) == '+' ) )
+			{
+				negativeExp = str.charAt( i ) == '-';
+				i++;
+			}
+			final int expStart = i;
+			int exp = 0;
+			for ( ; i < len; i++ )
+			{
+				final char c = str.charAt( i );
+				if ( c < '0' || c > '9' || exp > 10000 )
+					break;
+				exp = 10 * exp + ( c - '0' );
+			}
+			if ( i == expStart )
+				return Double.parseDouble( str );
+			exponent += negativeExp ? -exp : exp;
+		}
+		if ( i != len )
+			return Double.parseDouble( str );
+
+		if ( mantissa > MAX_EXACT )
+			return Double.parseDouble( str );
+
+		final double value;
+		if ( mantissa == 0 )
+			value = 0.;
+		else if ( exponent >= 0 && exponent < POW10.length )
+			value = mantissa * POW10[ exponent ];
+		else if ( exponent < 0 && -exponent < POW10.length )
+			value = mantissa / POW10[ -exponent ];
+		else
+			return Double.parseDouble( str );
+
+		return negative ? -value : value;
+	}
+}
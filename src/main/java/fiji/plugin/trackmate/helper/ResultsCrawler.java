@@ -26,31 +26,43 @@ import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.scijava.listeners.Listeners;
 
-import com.opencsv.CSVReader;
-import com.opencsv.CSVReaderBuilder;
-import com.opencsv.exceptions.CsvValidationException;
-
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.helper.TrackingMetricsType.MetricValue;
@@ -68,8 +80,47 @@ public class ResultsCrawler
 
 	private final Logger batchLogger;
 
+	/**
+	 * Default time, in milliseconds, over which the watcher coalesces file
+	 * events.
+	 */
+	public static final long DEFAULT_WATCH_DEBOUNCE = 500;
+
+	/**
+	 * Max number of bytes of a CSV file read at once.
+	 */
+	private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
 	private final Map< String, TrackingMetricsTable > tables;
 
+	/**
+	 * How much of each CSV file was read.
+	 */
+	private final Map< String, CSVFileState > states;
+
+	/**
+	 * Number of lines in the tables for each detector and tracker
+	 * configuration.
+	 */
+	private final Map< String, Integer > index;
+
+	/**
+	 * Best line for each detector and tracker combination, for each metric.
+	 */
+	private volatile Map< List< String >, AtomicReferenceArray< BestLine > > bests;
+
+	/**
+	 * Guards the updates of the indices, when files are read concurrently.
+	 */
+	private final Object indexLock = new Object();
+
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Time, in milliseconds, over which the watcher coalesces file events.
+	 */
+	private volatile long watchDebounce = DEFAULT_WATCH_DEBOUNCE;
+
 	private ResultsFolderWatcher folderWatcher;
 
 	private final TrackingMetricsType type;
@@ -79,6 +130,9 @@ public class ResultsCrawler
 		this.type = type;
 		this.batchLogger = batchLogger;
 		this.tables = new ConcurrentHashMap<>();
+		this.states = new ConcurrentHashMap<>();
+		this.index = new ConcurrentHashMap<>();
+		this.bests = new ConcurrentHashMap<>();
 	}
 
 	public void watch( final String folder )
@@ -88,15 +142,31 @@ public class ResultsCrawler
 		folderWatcher.start();
 	}
 
+	/**
+	 * Sets the time over which the folder watcher coalesces file events
+	 * before updating this crawler. A burst of events on a CSV file triggers
+	 * a single update.
+	 * 
+	 * @param millis
+	 *            the debounce interval, in milliseconds.
+	 */
+	public void setWatchDebounce( final long millis )
+	{
+		this.watchDebounce = Math.max( 0, millis );
+	}
+
 	public void stopWatching()
 	{
 		if ( folderWatcher != null )
 			folderWatcher.stopWatching();
 	}
 
-	public void reset()
+	public synchronized void reset()
 	{
 		tables.clear();
+		states.clear();
+		index.clear();
+		bests = new ConcurrentHashMap<>();
 	}
 
 	public String printReport()
@@ -127,27 +197,39 @@ public class ResultsCrawler
 		return str.toString();
 	}
 
+	/**
+	 * Returns the CSV file and the line of the best results for the specified
+	 * metric, obtained with the specified detector and tracker.
+	 * 
+	 * @param detector
+	 *            the detector key, or <code>null</code> to consider all
+	 *            detectors.
+	 * @param tracker
+	 *            the tracker key, or <code>null</code> to consider all
+	 *            trackers.
+	 * @param key
+	 *            the metric to optimize.
+	 * @return the path to the CSV file and the line in its table. The path is
+	 *         <code>null</code> and the line is -1 if there are no results.
+	 */
 	public ValuePair< String, Integer > bestFor( final String detector, final String tracker, final MetricValue key )
 	{
-		TrackingMetrics best = null;
-		int bestLine = -1;
-		String bestCSVFile = null;
-		for ( final String csvFile : tables.keySet() )
+		// Reduce over the detector and tracker combinations.
+		final int id = type.id( key );
+		BestLine best = null;
+		for ( final Map.Entry< List< String >, AtomicReferenceArray< BestLine > > entry : bests.entrySet() )
 		{
-			final TrackingMetricsTable results = tables.get( csvFile );
-			final int line = results.bestFor( detector, tracker, key );
-			if ( line < 0 )
+			if ( ( null != detector && !entry.getKey().get( 0 ).equals( detector ) )
+					|| ( null != tracker && !entry.getKey().get( 1 ).equals( tracker ) ) )
 				continue;
 
-			final TrackingMetrics m = results.getMetrics( line );
-			if ( m.isBetterThan( best, key ) )
-			{
-				best = m;
-				bestLine = line;
-				bestCSVFile = csvFile;
-			}
+			final BestLine candidate = entry.getValue().get( id );
+			if ( candidate != null && ( best == null || candidate.isBetterThan( best, key ) ) )
+				best = candidate;
 		}
-		return new ValuePair<>( bestCSVFile, bestLine );
+		if ( best == null )
+			return new ValuePair<>( null, -1 );
+		return new ValuePair<>( best.csvFile, best.line );
 	}
 
 	public ValuePair< String, Integer > bestFor( final MetricValue key )
@@ -162,110 +244,396 @@ public class ResultsCrawler
 		return tables.get( csvFile );
 	}
 
+	/**
+	 * Crawls the specified folder for results CSV files and updates the tables
+	 * of this crawler. Files already read are parsed incrementally: only the
+	 * lines appended since the last crawl are read. A file is read again from
+	 * the start only if it shrank or if its header changed. Tables of files
+	 * that do not exist anymore are removed.
+	 * 
+	 * @param resultsFolder
+	 *            the folder to crawl.
+	 * @throws IOException
+	 *             if the folder cannot be listed.
+	 */
 	public synchronized void crawl( final String resultsFolder ) throws IOException
 	{
 		final List< String > csvFiles = findFiles( resultsFolder, "csv" );
+		final Set< String > found = new HashSet<>( csvFiles );
+		final String root = new File( resultsFolder ).getAbsolutePath();
+		for ( final String csvFile : new ArrayList<>( states.keySet() ) )
+			if ( csvFile.startsWith( root ) && !found.contains( csvFile ) )
+				remove( csvFile );
+
+		readAll( csvFiles );
+		notifyListeners();
+	}
+
+	/**
+	 * Reads the specified CSV files, concurrently if there are several.
+	 */
+	private void readAll( final Collection< String > csvFiles )
+	{
+		final int nThreads = Math.min( numThreads, csvFiles.size() );
+		if ( nThreads <= 1 )
+		{
+			for ( final String csvFile : csvFiles )
+				read( csvFile );
+			return;
+		}
+
+		// One task per file.
+		final List< Callable< Void > > tasks = new ArrayList<>( csvFiles.size() );
 		for ( final String csvFile : csvFiles )
+			tasks.add( () -> {
+				read( csvFile );
+				return null;
+			} );
+
+		final ForkJoinPool pool = new ForkJoinPool( nThreads );
+		try
+		{
+			pool.invokeAll( tasks );
+		}
+		finally
 		{
-			try (CSVReader csvReader = new CSVReaderBuilder( new FileReader( csvFile ) ).build())
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Sets the number of threads used to read the CSV files in a crawl.
+	 * 
+	 * @param numThreads
+	 *            the number of threads.
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	 * Updates the table of the specified CSV file, reading only the lines
+	 * appended since it was last read.
+	 * 
+	 * @param csvFile
+	 *            the path to the CSV file.
+	 */
+	public void update( final String csvFile )
+	{
+		update( Collections.singleton( csvFile ) );
+	}
+
+	/**
+	 * Updates the tables of the specified CSV files, reading only the lines
+	 * appended since they were last read. The listeners are notified once,
+	 * after all the files are read.
+	 * 
+	 * @param csvFiles
+	 *            the paths to the CSV files.
+	 */
+	public synchronized void update( final Collection< String > csvFiles )
+	{
+		final List< String > toRead = new ArrayList<>( csvFiles.size() );
+		for ( final String csvFile : csvFiles )
+		{
+			if ( new File( csvFile ).isFile() )
+				toRead.add( csvFile );
+			else
+				remove( csvFile );
+		}
+		readAll( toRead );
+		notifyListeners();
+	}
+
+	private void remove( final String csvFile )
+	{
+		states.remove( csvFile );
+		final TrackingMetricsTable table = tables.remove( csvFile );
+		if ( table != null )
+		{
+			synchronized ( indexLock )
 			{
-				final String[] readHeader = csvReader.readNext();
+				unindex( table );
+				reindexBests();
+			}
+		}
+	}
+
+	private void read( final String csvFile )
+	{
+		try (final RandomAccessFile raf = new RandomAccessFile( csvFile, "r" ))
+		{
+			final long length = raf.length();
+			CSVFileState state = states.get( csvFile );
+			if ( state != null && ( length < state.offset || !state.header.equals( readFirstLine( raf ) ) ) )
+			{
+				// Truncated or rewritten: read it again from the start.
+				remove( csvFile );
+				state = null;
+			}
+
+			if ( state == null )
+			{
+				final String header = readFirstLine( raf );
+				if ( header == null )
+					return; // Empty or no complete line yet.
+
+				state = new CSVFileState( header, raf.getFilePointer() );
+				states.put( csvFile, state );
+				final String[] readHeader = ResultsCSVParser.split( header );
 				if ( !type.isHeader( readHeader ) )
 				{
 					batchLogger.log( String.format(
 							"CSV file %s is not a " + type.name() + " results file. Skipping.\n", csvFile ) );
-					continue;
 				}
+				else
+				{
+					state.builder = type.tableBuilder().addHeader( readHeader );
+					tables.put( csvFile, state.builder.get() );
+				}
+			}
 
-				final TrackingMetricsTableBuilder builder = type.tableBuilder().addHeader( readHeader );
-				String[] line;
-				while ( ( line = csvReader.readNext() ) != null )
-					builder.addFromCSV( line );
+			if ( state.builder == null )
+			{
+				// Not a results file, skip what was appended.
+				state.offset = length;
+				return;
+			}
 
-				final TrackingMetricsTable results = builder.get();
-				tables.put( csvFile, results );
+			// Read what was appended, up to the last complete line.
+			while ( state.offset < length )
+			{
+				final byte[] bytes = new byte[ ( int ) Math.min( MAX_CHUNK_SIZE, length - state.offset ) ];
+				raf.seek( state.offset );
+				raf.readFully( bytes );
+				int end = bytes.length;
+				while ( end > 0 && bytes[ end - 1 ] != '\n' )
+					end--;
+				if ( end == 0 )
+					return; // Line still being written.
+
+				state.offset += end;
+				final TrackingMetricsTable table = state.builder.get();
+				final int from = table.size();
+				int skipped = 0;
+				RuntimeException firstError = null;
+				try
+				{
+					final String text = new String( bytes, 0, end, Charset.defaultCharset() );
+					int start = 0;
+					while ( start < text.length() )
+					{
+						final int eol = text.indexOf( '\n', start );
+						final int lineStart = start;
+						start = eol + 1;
+						try
+						{
+							final String[] line = ResultsCSVParser.split( text, lineStart, eol );
+							if ( line.length == 1 && line[ 0 ].isEmpty() )
+								continue;
+							state.builder.addFromCSV( line );
+						}
+						catch ( final RuntimeException e )
+						{
+							// Malformed line: skip it, not the rest of the chunk.
+							skipped++;
+							if ( firstError == null )
+								firstError = e;
+						}
+					}
+				}
+				finally
+				{
+					index( csvFile, table, from );
+				}
+				if ( skipped > 0 )
+					batchLogger.error( String.format( "Skipped %d malformed line(s) in CSV file %s:\n%s\n",
+							skipped, csvFile, firstError.getMessage() ) );
 			}
-			catch ( final IOException | CsvValidationException e )
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			batchLogger.error( "Cannot read CSV file " + csvFile + ":\n" + e.getMessage() );
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads the first complete line of a file, leaving the file pointer right
+	 * after it. Returns <code>null</code> if the file does not have a
+	 * complete line yet.
+	 */
+	private static final String readFirstLine( final RandomAccessFile raf ) throws IOException
+	{
+		raf.seek( 0 );
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[ 4096 ];
+		long pos = 0;
+		int n;
+		while ( ( n = raf.read( buffer ) ) > 0 )
+		{
+			for ( int i = 0; i < n; i++ )
 			{
-				batchLogger.error( "Cannot open CSV file " + csvFile + " for reading:\n" + e.getMessage() );
-				e.printStackTrace();
+				if ( buffer[ i ] == '\n' )
+				{
+					out.write( buffer, 0, i );
+					raf.seek( pos + i + 1 );
+					return new String( out.toByteArray(), Charset.defaultCharset() );
+				}
 			}
+			out.write( buffer, 0, n );
+			pos += n;
 		}
-		notifyListeners();
+		return null;
 	}
 
-	private static final List< String > findFiles( final String folder, final String fileExtension )
+	/**
+	 * How much of a CSV file was read, and the builder lines are added with.
+	 */
+	private static final class CSVFileState
 	{
-		final File root = new File( folder );
-		if ( !root.isDirectory() )
-			throw new IllegalArgumentException( "Path must be a directory!" );
 
-		final String fe = fileExtension.toLowerCase();
-		final File[] list = root.listFiles();
-		if ( list == null )
-			return Collections.emptyList();
+		private final String header;
 
-		final List< String > out = new ArrayList< String >();
-		for ( final File f : list )
-		{
-			// Skip CTC export folders.
-			final String name = f.getName();
-			if ( name.endsWith( "GT" ) || name.endsWith( "ST" ) || name.endsWith( "RES" ) )
-				continue;
+		private long offset;
+
+		/**
+		 * Is <code>null</code> if the file is not a results file.
+		 */
+		private TrackingMetricsTableBuilder builder;
 
-			if ( f.isDirectory() )
-				out.addAll( findFiles( f.getAbsolutePath(), fileExtension ) );
-			else if ( f.getName().toLowerCase().endsWith( fe ) )
-				out.add( f.getAbsolutePath() );
+		private CSVFileState( final String header, final long offset )
+		{
+			this.header = header;
+			this.offset = offset;
 		}
-		return out;
 	}
 
-	public synchronized boolean isSettingsPresent( final Settings settings )
+	private static final List< String > findFiles( final String folder, final String fileExtension ) throws IOException
 	{
-		final List< TrackingMetricsTable > list = new ArrayList<>( tables.values() );
-		for ( final TrackingMetricsTable results : list )
+		final Path root = Paths.get( folder );
+		if ( !Files.isDirectory( root ) )
+			throw new IllegalArgumentException( "Path must be a directory!" );
+
+		final String fe = fileExtension.toLowerCase();
+		final List< String > out = new ArrayList< String >();
+		Files.walkFileTree( root, EnumSet.of( FileVisitOption.FOLLOW_LINKS ), Integer.MAX_VALUE, new SimpleFileVisitor< Path >()
 		{
-			// Test detector.
-			final int ntests = results.size();
-			LINE: for ( int i = 0; i < ntests; i++ )
+			@Override
+			public FileVisitResult preVisitDirectory( final Path dir, final BasicFileAttributes attrs )
 			{
-				final String detectorKey = results.getDetector( i );
-				if ( !detectorKey.equals( settings.detectorFactory.getKey() ) )
-					continue;
-				// Detectors are equal.
+				if ( !dir.equals( root ) && isSkipped( dir ) )
+					return FileVisitResult.SKIP_SUBTREE;
+				return FileVisitResult.CONTINUE;
+			}
 
-				final Map< String, Object > ds = settings.detectorSettings;
-				final Map< String, String > dp = results.getDetectorParams( i );
-				for ( final String key : ds.keySet() )
-				{
-					final Object o1 = ds.get( key );
-					final String o2 = dp.get( key );
-					if ( !o1.toString().equals( o2 ) )
-						continue LINE;
-				}
-				// Detector params are equal.
+			@Override
+			public FileVisitResult visitFile( final Path file, final BasicFileAttributes attrs )
+			{
+				if ( attrs.isRegularFile() && hasExtension( file, fe ) )
+					out.add( file.toAbsolutePath().toString() );
+				return FileVisitResult.CONTINUE;
+			}
 
-				final String trackerKey = results.getTracker( i );
-				if ( !trackerKey.equals( settings.trackerFactory.getKey() ) )
-					continue;
-				// Tracker are equal.
+			@Override
+			public FileVisitResult visitFileFailed( final Path file, final IOException exc )
+			{
+				// Unreadable file or folder, or a cycle of links.
+				return FileVisitResult.CONTINUE;
+			}
+		} );
+		return out;
+	}
 
-				final Map< String, Object > ts = settings.trackerSettings;
-				final Map< String, String > tp = results.getTrackerParams( i );
-				for ( final String key : ts.keySet() )
-				{
-					final Object o1 = ts.get( key );
-					final String o2 = tp.get( key );
-					if ( !o1.toString().equals( o2 ) )
-						continue LINE;
-				}
-				// Tracker params are equal.
+	/**
+	 * Returns <code>true</code> if the specified folder is a CTC export folder,
+	 * which the crawler and the watcher skip.
+	 */
+	private static final boolean isSkipped( final Path dir )
+	{
+		final Path name = dir.getFileName();
+		if ( name == null )
+			return false;
+		final String str = name.toString();
+		return str.endsWith( "GT" ) || str.endsWith( "ST" ) || str.endsWith( "RES" );
+	}
 
-				return true;
+	private static final boolean hasExtension( final Path file, final String fileExtension )
+	{
+		return file.getFileName().toString().toLowerCase().endsWith( fileExtension );
+	}
+
+	/**
+	 * Returns <code>true</code> if the results of the specified settings are
+	 * present in the tables of this crawler. The detector and tracker, and
+	 * the string value of all their parameters must match.
+	 * 
+	 * @param settings
+	 *            the settings to look for.
+	 * @return <code>true</code> if there are results for these settings.
+	 */
+	public boolean isSettingsPresent( final Settings settings )
+	{
+		final Map< String, String > ds = new HashMap<>();
+		settings.detectorSettings.forEach( ( k, v ) -> ds.put( k, String.valueOf( v ) ) );
+		final Map< String, String > ts = new HashMap<>();
+		settings.trackerSettings.forEach( ( k, v ) -> ts.put( k, String.valueOf( v ) ) );
+		return index.containsKey( TrackingMetricsTable.fingerprint(
+				settings.detectorFactory.getKey(), ds,
+				settings.trackerFactory.getKey(), ts ) );
+	}
+
+	/**
+	 * Adds the lines of the specified table, from the specified line, to the
+	 * settings index and to the best lines index.
+	 */
+	private void index( final String csvFile, final TrackingMetricsTable table, final int from )
+	{
+		synchronized ( indexLock )
+		{
+			for ( int i = from; i < table.size(); i++ )
+			{
+				index.merge( table.fingerprint( i ), 1, Integer::sum );
+				indexBest( bests, csvFile, table, i );
 			}
 		}
-		return false;
+	}
+
+	private void indexBest( final Map< List< String >, AtomicReferenceArray< BestLine > > map, final String csvFile, final TrackingMetricsTable table, final int line )
+	{
+		final List< MetricValue > keys = type.metrics();
+		final AtomicReferenceArray< BestLine > bestLines = map.computeIfAbsent(
+				Arrays.asList( table.getDetector( line ), table.getTracker( line ) ),
+				k -> new AtomicReferenceArray<>( keys.size() ) );
+		final BestLine candidate = new BestLine( csvFile, line, table.getMetrics( line ) );
+		for ( int i = 0; i < keys.size(); i++ )
+		{
+			final BestLine best = bestLines.get( i );
+			if ( best == null || candidate.isBetterThan( best, keys.get( i ) ) )
+				bestLines.set( i, candidate );
+		}
+	}
+
+	/**
+	 * Rebuilds the best lines index from all the tables.
+	 */
+	private void reindexBests()
+	{
+		final Map< List< String >, AtomicReferenceArray< BestLine > > map = new ConcurrentHashMap<>();
+		for ( final Map.Entry< String, TrackingMetricsTable > entry : tables.entrySet() )
+		{
+			final TrackingMetricsTable table = entry.getValue();
+			for ( int i = 0; i < table.size(); i++ )
+				indexBest( map, entry.getKey(), table, i );
+		}
+		bests = map;
+	}
+
+	private void unindex( final TrackingMetricsTable table )
+	{
+		for ( int i = 0; i < table.size(); i++ )
+			index.computeIfPresent( table.fingerprint( i ), ( k, n ) -> n > 1 ? n - 1 : null );
 	}
 
 	public Listeners.List< CrawlerListener > listeners()
@@ -346,6 +714,44 @@ public class ResultsCrawler
 		return count;
 	}
 
+	/**
+	 * A line in the table of a CSV file.
+	 */
+	private static final class BestLine
+	{
+
+		private final String csvFile;
+
+		private final int line;
+
+		private final TrackingMetrics metrics;
+
+		private BestLine( final String csvFile, final int line, final TrackingMetrics metrics )
+		{
+			this.csvFile = csvFile;
+			this.line = line;
+			this.metrics = metrics;
+		}
+
+		/**
+		 * Returns <code>true</code> if this line is better than the specified
+		 * one for the specified metric. Lines with a NaN value are worse than
+		 * any other line.
+		 */
+		private boolean isBetterThan( final BestLine other, final MetricValue key )
+		{
+			if ( Double.isNaN( other.metrics.get( key ) ) )
+				return !Double.isNaN( metrics.get( key ) );
+			return metrics.isBetterThan( other.metrics, key );
+		}
+	}
+
+	/**
+	 * Watches a results folder and its sub-folders, and updates the crawler
+	 * with the CSV files that changed. The events received within the
+	 * debounce interval of the first one are coalesced, so that the crawler
+	 * reads each changed file only once.
+	 */
 	private static final class ResultsFolderWatcher extends Thread
 	{
 
@@ -357,7 +763,12 @@ public class ResultsCrawler
 
 		private final Logger logger;
 
-		private boolean stopped;
+		/**
+		 * The folder watched by each key.
+		 */
+		private final Map< WatchKey, Path > keys = new HashMap<>();
+
+		private volatile boolean stopped;
 
 		public ResultsFolderWatcher( final ResultsCrawler crawler, final String folder, final Logger logger )
 		{
@@ -368,7 +779,7 @@ public class ResultsCrawler
 			try
 			{
 				this.watcher = FileSystems.getDefault().newWatchService();
-				dir.register( watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY );
+				register( dir, new HashSet<>() );
 			}
 			catch ( final IOException e )
 			{
@@ -376,59 +787,155 @@ public class ResultsCrawler
 			}
 		}
 
+		/**
+		 * Registers the specified folder and its sub-folders, and collects
+		 * the CSV files already in them.
+		 */
+		private void register( final Path start, final Set< String > csvFiles ) throws IOException
+		{
+			Files.walkFileTree( start, EnumSet.of( FileVisitOption.FOLLOW_LINKS ), Integer.MAX_VALUE, new SimpleFileVisitor< Path >()
+			{
+				@Override
+				public FileVisitResult preVisitDirectory( final Path folder, final BasicFileAttributes attrs ) throws IOException
+				{
+					if ( !folder.equals( dir ) && isSkipped( folder ) )
+						return FileVisitResult.SKIP_SUBTREE;
+
+					keys.put( folder.register( watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY ), folder );
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile( final Path file, final BasicFileAttributes attrs )
+				{
+					if ( hasExtension( file, "csv" ) )
+						csvFiles.add( file.toAbsolutePath().toString() );
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed( final Path file, final IOException exc )
+				{
+					return FileVisitResult.CONTINUE;
+				}
+			} );
+		}
+
 		public void stopWatching()
 		{
 			stopped = true;
+			try
+			{
+				if ( watcher != null )
+					watcher.close();
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+			}
 		}
 
 		@Override
 		public void run()
 		{
-			logger.log( "Watching folder " + dir.toString() + " for results files.\n" );
-			stopped = false;
+			if ( watcher == null )
+				return;
+
+			logger.log( "Watching folder " + dir.toString() + " and its sub-folders for results files.\n" );
 			try
 			{
-				while ( stopped == false )
+				while ( !stopped )
 				{
-					final WatchKey key = watcher.take();
-					if ( key == null )
+					WatchKey key = watcher.take();
+
+					// Coalesce the events received within the debounce interval.
+					final Set< String > changed = new LinkedHashSet<>();
+					boolean recrawl = false;
+					final long deadline = System.currentTimeMillis() + crawler.watchDebounce;
+					while ( key != null )
+					{
+						recrawl |= process( key, changed );
+						final long remaining = deadline - System.currentTimeMillis();
+						key = ( remaining > 0 ) ? watcher.poll( remaining, TimeUnit.MILLISECONDS ) : null;
+					}
+
+					if ( stopped )
 						break;
 
-					for ( final WatchEvent< ? > event : key.pollEvents() )
+					if ( recrawl )
 					{
-						final Kind< ? > kind = event.kind();
-						if ( kind == OVERFLOW )
-							continue;
-
-						// Crawl only if we have touched a CSV file.
-						@SuppressWarnings( "unchecked" )
-						final WatchEvent< Path > ev = ( WatchEvent< Path > ) event;
-						final Path filename = ev.context();
-						if ( filename.toString().toLowerCase().endsWith( "csv" ) )
+						try
+						{
+							crawler.crawl( dir.toString() );
+						}
+						catch ( final IOException | IllegalArgumentException e )
 						{
-							try
-							{
-								crawler.reset();
-								crawler.crawl( dir.toString() );
-							}
-							catch ( final IOException e )
-							{
-								logger.error( "Error while crawling the folder " + dir.toString() + " for CSV results file:\n" );
-								logger.error( e.getMessage() );
-								e.printStackTrace();
-							}
+							logger.error( "Error while crawling the folder " + dir.toString() + " for CSV results file:\n" );
+							logger.error( e.getMessage() );
+							e.printStackTrace();
 						}
 					}
-					final boolean valid = key.reset();
-					if ( !valid )
-						break;
+					else if ( !changed.isEmpty() )
+					{
+						crawler.update( changed );
+					}
 				}
-				logger.log( "Stopped watching folder " + dir.toString() + " for metric results files.\n" );
 			}
-			catch ( final InterruptedException e )
+			catch ( final InterruptedException | ClosedWatchServiceException e )
+			{}
+			logger.log( "Stopped watching folder " + dir.toString() + " for metric results files.\n" );
+		}
+
+		/**
+		 * Collects the CSV files changed in the events of the specified key,
+		 * and registers the new sub-folders. Returns <code>true</code> if the
+		 * whole folder must be crawled again, because events were lost or
+		 * because a sub-folder was deleted.
+		 */
+		private boolean process( final WatchKey key, final Set< String > changed )
+		{
+			final Path folder = keys.get( key );
+			boolean recrawl = false;
+			for ( final WatchEvent< ? > event : key.pollEvents() )
 			{
-				e.printStackTrace();
+				final Kind< ? > kind = event.kind();
+				if ( kind == OVERFLOW || folder == null )
+				{
+					recrawl = true;
+					continue;
+				}
+
+				final Path path = folder.resolve( ( Path ) event.context() );
+				if ( kind == ENTRY_CREATE && Files.isDirectory( path ) )
+				{
+					if ( isSkipped( path ) )
+						continue;
+					try
+					{
+						// Files may have been written before registration.
+						register( path, changed );
+					}
+					catch ( final IOException e )
+					{
+						logger.error( "Cannot watch the folder " + path + ":\n" + e.getMessage() + '\n' );
+					}
+				}
+				else if ( hasExtension( path, "csv" ) )
+				{
+					changed.add( path.toAbsolutePath().toString() );
+				}
+			}
+
+			if ( !key.reset() )
+			{
+				// The folder was deleted.
+				keys.remove( key );
+				if ( dir.equals( folder ) )
+					stopped = true;
+				else
+					recrawl = true;
 			}
+			return recrawl;
 		}
 	}
 
@@ -21,28 +21,130 @@
  */
 package fiji.plugin.trackmate.helper;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
 
 import fiji.plugin.trackmate.helper.TrackingMetricsType.MetricValue;
 import fiji.plugin.trackmate.util.TMUtils;
 
+/**
+ * A table of metrics results, read from a CSV results file.
+ * <p>
+ * The table is stored in columns: one primitive array per metric, and one
+ * array of string ids per detector, tracker and parameter column. The string
+ * values are stored once in a dictionary shared by all columns, and the
+ * parameter names once in the header schema.
+ * 
+ * @author Jean-Yves Tinevez
+ */
 public class TrackingMetricsTable
 {
 
+	private static final int INITIAL_CAPACITY = 64;
+
 	private final TrackingMetricsType type;
 
-	private final List< TrackingMetrics > metrics;
+	/**
+	 * Position of the detector and tracker columns in the CSV lines. The
+	 * detector parameters are between them, and the tracker parameters after
+	 * the tracker column.
+	 */
+	private final int detectorCol;
+
+	private final int trackerCol;
+
+	private final String[] detectorKeys;
+
+	private final String[] trackerKeys;
+
+	/**
+	 * Indices of the parameters sorted by name.
+	 */
+	private final int[] detectorKeyOrder;
+
+	private final int[] trackerKeyOrder;
+
+	/**
+	 * Dictionary of the string values.
+	 */
+	private final List< String > strings;
+
+	private final Map< String, Integer > stringIds;
 
-	private final List< String > detectors;
+	/**
+	 * One array per metric, indexed by line.
+	 */
+	private final double[][] metrics;
 
-	private final List< String > trackers;
+	private int[] detectors;
 
-	private final List< Map< String, String > > detectorParams;
+	private int[] trackers;
 
-	private final List< Map< String, String > > trackerParams;
+	/**
+	 * One array per parameter, indexed by line. A value of -1 means that the
+	 * parameter value is missing from the line.
+	 */
+	private final int[][] detectorParams;
 
+	private final int[][] trackerParams;
+
+	private int size;
+
+	/**
+	 * Creates an empty table for CSV files with the specified header.
+	 * 
+	 * @param type
+	 *            the metrics type.
+	 * @param header
+	 *            the CSV header, already validated with
+	 *            {@link TrackingMetricsType#isHeader(String[])}.
+	 */
+	TrackingMetricsTable( final TrackingMetricsType type, final String[] header )
+	{
+		this.type = type;
+		this.detectorCol = Arrays.asList( header ).indexOf( "DETECTOR" );
+		this.trackerCol = Arrays.asList( header ).indexOf( "TRACKER" );
+		this.detectorKeys = Arrays.copyOfRange( header, detectorCol + 1, trackerCol );
+		this.trackerKeys = Arrays.copyOfRange( header, trackerCol + 1, header.length );
+		this.detectorKeyOrder = sortedOrder( detectorKeys );
+		this.trackerKeyOrder = sortedOrder( trackerKeys );
+		this.strings = new ArrayList<>();
+		this.stringIds = new HashMap<>();
+		this.metrics = new double[ type.metrics().size() ][ INITIAL_CAPACITY ];
+		this.detectors = new int[ INITIAL_CAPACITY ];
+		this.trackers = new int[ INITIAL_CAPACITY ];
+		this.detectorParams = new int[ detectorKeys.length ][ INITIAL_CAPACITY ];
+		this.trackerParams = new int[ trackerKeys.length ][ INITIAL_CAPACITY ];
+	}
+
+	/**
+	 * Creates a table with the specified lines. Element <code>i</code> of
+	 * each list holds the values of line <code>i</code>. The values are
+	 * copied in the columns of the table, and the parameter columns are the
+	 * union of the parameters of all the lines.
+	 * 
+	 * @param type
+	 *            the metrics type.
+	 * @param metrics
+	 *            the metrics values of each line.
+	 * @param detectors
+	 *            the detector of each line.
+	 * @param trackers
+	 *            the tracker of each line.
+	 * @param detectorParams
+	 *            the detector parameters of each line.
+	 * @param trackerParams
+	 *            the tracker parameters of each line.
+	 */
 	public TrackingMetricsTable(
 			final TrackingMetricsType type,
 			final List< TrackingMetrics > metrics,
@@ -51,79 +153,280 @@ public class TrackingMetricsTable
 			final List< Map< String, String > > detectorParams,
 			final List< Map< String, String > > trackerParams )
 	{
-		this.type = type;
-		this.metrics = metrics;
-		this.detectors = detectors;
-		this.trackers = trackers;
-		this.detectorParams = detectorParams;
-		this.trackerParams = trackerParams;
+		this( type, header( type, detectorParams, trackerParams ) );
+		for ( int i = 0; i < metrics.size(); i++ )
+			add( metrics.get( i ), detectors.get( i ), detectorParams.get( i ), trackers.get( i ), trackerParams.get( i ) );
+	}
+
+	private static String[] header(
+			final TrackingMetricsType type,
+			final List< Map< String, String > > detectorParams,
+			final List< Map< String, String > > trackerParams )
+	{
+		final Set< String > detectorKeys = new LinkedHashSet<>();
+		detectorParams.forEach( m -> detectorKeys.addAll( m.keySet() ) );
+		final Set< String > trackerKeys = new LinkedHashSet<>();
+		trackerParams.forEach( m -> trackerKeys.addAll( m.keySet() ) );
+
+		final List< String > columns = new ArrayList<>();
+		columns.add( "DETECTOR" );
+		columns.addAll( detectorKeys );
+		columns.add( "TRACKER" );
+		columns.addAll( trackerKeys );
+		return type.concatWithHeader( columns.toArray( new String[ columns.size() ] ) );
+	}
+
+	private void add(
+			final TrackingMetrics m,
+			final String detector,
+			final Map< String, String > dp,
+			final String tracker,
+			final Map< String, String > tp )
+	{
+		ensureCapacity( size + 1 );
+		final double[] values = m.toArray();
+		for ( int i = 0; i < metrics.length; i++ )
+			metrics[ i ][ size ] = values[ i ];
+
+		detectors[ size ] = id( detector );
+		for ( int i = 0; i < detectorKeys.length; i++ )
+		{
+			final String val = dp.get( detectorKeys[ i ] );
+			detectorParams[ i ][ size ] = ( val == null ) ? -1 : id( val );
+		}
+
+		trackers[ size ] = id( tracker );
+		for ( int i = 0; i < trackerKeys.length; i++ )
+		{
+			final String val = tp.get( trackerKeys[ i ] );
+			trackerParams[ i ][ size ] = ( val == null ) ? -1 : id( val );
+		}
+		size++;
+	}
+
+	/**
+	 * Adds a line read from a CSV file to this table. The table is left
+	 * unchanged if the line cannot be parsed.
+	 * 
+	 * @param line
+	 *            the CSV line.
+	 */
+	synchronized void add( final String[] line )
+	{
+		ensureCapacity( size + 1 );
+		// Metrics first. Order is validated with the header elsewhere.
+		for ( int i = 0; i < metrics.length; i++ )
+			metrics[ i ][ size ] = ResultsCSVParser.parseDouble( line[ i ] );
+
+		detectors[ size ] = id( line[ detectorCol ] );
+		for ( int i = 0; i < detectorKeys.length; i++ )
+			detectorParams[ i ][ size ] = id( line[ detectorCol + 1 + i ] );
+
+		trackers[ size ] = id( line[ trackerCol ] );
+		for ( int i = 0; i < trackerKeys.length; i++ )
+		{
+			final int col = trackerCol + 1 + i;
+			trackerParams[ i ][ size ] = ( col < line.length ) ? id( line[ col ] ) : -1;
+		}
+		size++;
+	}
+
+	private int id( final String str )
+	{
+		final Integer id = stringIds.get( str );
+		if ( id != null )
+			return id.intValue();
+
+		final int newId = strings.size();
+		strings.add( str );
+		stringIds.put( str, Integer.valueOf( newId ) );
+		return newId;
+	}
+
+	private void ensureCapacity( final int capacity )
+	{
+		if ( capacity <= detectors.length )
+			return;
+
+		final int newCapacity = Math.max( capacity, detectors.length + ( detectors.length >> 1 ) );
+		for ( int i = 0; i < metrics.length; i++ )
+			metrics[ i ] = Arrays.copyOf( metrics[ i ], newCapacity );
+		detectors = Arrays.copyOf( detectors, newCapacity );
+		trackers = Arrays.copyOf( trackers, newCapacity );
+		for ( int i = 0; i < detectorParams.length; i++ )
+			detectorParams[ i ] = Arrays.copyOf( detectorParams[ i ], newCapacity );
+		for ( int i = 0; i < trackerParams.length; i++ )
+			trackerParams[ i ] = Arrays.copyOf( trackerParams[ i ], newCapacity );
+	}
+
+	private static int[] sortedOrder( final String[] keys )
+	{
+		return IntStream.range( 0, keys.length )
+				.boxed()
+				.sorted( Comparator.comparing( i -> keys[ i ] ) )
+				.mapToInt( Integer::intValue )
+				.toArray();
 	}
 
-	public int size()
+	/**
+	 * Returns a string that identifies the detector and tracker configuration
+	 * of the specified line. Two lines have the same fingerprint only if they
+	 * have the same detector, tracker and parameter values. This is the
+	 * fingerprint {@link #fingerprint(String, Map, String, Map)} returns for
+	 * the configuration of this line.
+	 * 
+	 * @param line
+	 *            the line.
+	 * @return the fingerprint.
+	 */
+	synchronized String fingerprint( final int line )
 	{
-		return metrics.size();
+		checkLine( line );
+		final StringBuilder str = new StringBuilder();
+		appendFingerprint( str, detectors[ line ], detectorKeys, detectorKeyOrder, detectorParams, line );
+		appendFingerprint( str, trackers[ line ], trackerKeys, trackerKeyOrder, trackerParams, line );
+		return str.toString();
 	}
 
-	public String getDetector( final int line )
+	private void appendFingerprint( final StringBuilder str, final int nameId, final String[] keys, final int[] order, final int[][] columns, final int line )
 	{
-		return detectors.get( line );
+		int n = 0;
+		for ( int i = 0; i < keys.length; i++ )
+			if ( columns[ i ][ line ] >= 0 )
+				n++;
+
+		str.append( strings.get( nameId ) ).append( '\n' ).append( n ).append( '\n' );
+		for ( final int i : order )
+		{
+			final int id = columns[ i ][ line ];
+			if ( id >= 0 )
+				str.append( keys[ i ] ).append( '\n' ).append( strings.get( id ) ).append( '\n' );
+		}
 	}
 
-	public String getTracker( final int line )
+	/**
+	 * Returns a string that identifies the specified detector and tracker
+	 * configuration. The string has the detector and tracker names and their
+	 * parameters sorted by name, each on its own line. There are no new lines
+	 * in the CSV values, so two configurations have the same fingerprint only
+	 * if they are equal.
+	 * 
+	 * @param detector
+	 *            the detector key.
+	 * @param dp
+	 *            the detector parameters.
+	 * @param tracker
+	 *            the tracker key.
+	 * @param tp
+	 *            the tracker parameters.
+	 * @return the fingerprint.
+	 */
+	static String fingerprint(
+			final String detector,
+			final Map< String, String > dp,
+			final String tracker,
+			final Map< String, String > tp )
 	{
-		return trackers.get( line );
+		final StringBuilder str = new StringBuilder();
+		str.append( detector ).append( '\n' ).append( dp.size() ).append( '\n' );
+		new TreeMap<>( dp ).forEach( ( k, v ) -> str.append( k ).append( '\n' ).append( v ).append( '\n' ) );
+		str.append( tracker ).append( '\n' ).append( tp.size() ).append( '\n' );
+		new TreeMap<>( tp ).forEach( ( k, v ) -> str.append( k ).append( '\n' ).append( v ).append( '\n' ) );
+		return str.toString();
 	}
 
-	public Map< String, String > getDetectorParams( final int line )
+	private void checkLine( final int line )
 	{
-		return detectorParams.get( line );
+		if ( line < 0 || line >= size )
+			throw new IndexOutOfBoundsException( "Line: " + line + ", Size: " + size );
 	}
 
-	public Map< String, String > getTrackerParams( final int line )
+	private Map< String, String > params( final String[] keys, final int[][] columns, final int line )
 	{
-		return trackerParams.get( line );
+		final Map< String, String > map = new LinkedHashMap<>( 2 * keys.length );
+		for ( int i = 0; i < keys.length; i++ )
+		{
+			final int id = columns[ i ][ line ];
+			if ( id >= 0 )
+				map.put( keys[ i ], strings.get( id ) );
+		}
+		return map;
 	}
 
-	public TrackingMetrics getMetrics( final int i )
+	public synchronized int size()
 	{
-		return metrics.get( i );
+		return size;
 	}
 
-	public int bestFor( final String detector, final String tracker, final MetricValue key )
+	public synchronized String getDetector( final int line )
 	{
+		checkLine( line );
+		return strings.get( detectors[ line ] );
+	}
+
+	public synchronized String getTracker( final int line )
+	{
+		checkLine( line );
+		return strings.get( trackers[ line ] );
+	}
+
+	public synchronized Map< String, String > getDetectorParams( final int line )
+	{
+		checkLine( line );
+		return params( detectorKeys, detectorParams, line );
+	}
+
+	public synchronized Map< String, String > getTrackerParams( final int line )
+	{
+		checkLine( line );
+		return params( trackerKeys, trackerParams, line );
+	}
+
+	public synchronized TrackingMetrics getMetrics( final int i )
+	{
+		checkLine( i );
+		final TrackingMetrics m = new TrackingMetrics( type );
+		for ( int j = 0; j < metrics.length; j++ )
+			m.set( j, metrics[ j ][ i ] );
+		return m;
+	}
+
+	public synchronized int bestFor( final String detector, final String tracker, final MetricValue key )
+	{
+		final int detectorId = ( detector == null ) ? -1 : stringIds.getOrDefault( detector, -2 );
+		final int trackerId = ( tracker == null ) ? -1 : stringIds.getOrDefault( tracker, -2 );
+		if ( detectorId == -2 || trackerId == -2 )
+			return -1;
+
+		final double[] values = metrics[ type.id( key ) ];
 		int bestLine = -1;
-		TrackingMetrics best = null;
-		for ( int i = 0; i < metrics.size(); i++ )
+		for ( int i = 0; i < size; i++ )
 		{
-			if ( ( null != detector && !detectors.get( i ).equals( detector ) )
-					|| ( null != tracker && !trackers.get( i ).equals( tracker ) ) )
+			if ( ( detectorId >= 0 && detectors[ i ] != detectorId )
+					|| ( trackerId >= 0 && trackers[ i ] != trackerId ) )
 				continue;
 
-			final TrackingMetrics c = metrics.get( i );
-			if ( c.isBetterThan( best, key ) )
-			{
-				best = c;
+			if ( bestLine < 0 || key.optimumType.isBetterThan( values[ i ], values[ bestLine ] ) )
 				bestLine = i;
-			}
 		}
 		return bestLine;
 	}
 
 	@SuppressWarnings( { "unchecked", "rawtypes" } )
-	public String printLine( final int i )
+	public synchronized String printLine( final int i )
 	{
 		final StringBuilder str = new StringBuilder();
-		str.append( "For detector: " + detectors.get( i ) + " with settings:" );
-		str.append( "\n" + TMUtils.echoMap( ( Map ) detectorParams.get( i ), 2 ) );
-		str.append( "And tracker: " + trackers.get( i ) + " with settings:" );
-		str.append( "\n" + TMUtils.echoMap( ( Map ) trackerParams.get( i ), 2 ) );
+		str.append( "For detector: " + getDetector( i ) + " with settings:" );
+		str.append( "\n" + TMUtils.echoMap( ( Map ) getDetectorParams( i ), 2 ) );
+		str.append( "And tracker: " + getTracker( i ) + " with settings:" );
+		str.append( "\n" + TMUtils.echoMap( ( Map ) getTrackerParams( i ), 2 ) );
 		str.append( type.name() + " metrics:\n" );
-		str.append( metrics.get( i ).toString() );
+		str.append( getMetrics( i ).toString() );
 		return str.toString();
 	}
 
 	@Override
-	public String toString()
+	public synchronized String toString()
 	{
 		final int nspace = 2;
 		int id = 0;
@@ -133,30 +436,28 @@ public class TrackingMetricsTable
 		final int[] colWidths =
 				new int[ descs.size()
 						+ 2
-						+ detectorParams.get( 0 ).size()
-						+ trackerParams.get( 0 ).size() ];
+						+ detectorKeys.length
+						+ trackerKeys.length ];
 		for ( int i = 0; i < descs.size(); i++ )
 			colWidths[ id++ ] = Math.max( 5, descs.get( i ).key.length() );
 
 		// Detector col.
-		colWidths[ id++ ] = detectors.stream()
-				.mapToInt( d -> d.length() )
+		colWidths[ id++ ] = Arrays.stream( detectors, 0, size )
+				.map( d -> strings.get( d ).length() )
 				.max()
-				.getAsInt();
+				.orElse( 0 );
 
 		// Detector param cols.
-		final Set< String > detectorKeys = detectorParams.get( 0 ).keySet();
 		for ( final String dk : detectorKeys )
 			colWidths[ id++ ] = dk.length();
 
 		// Tracker col.
-		colWidths[ id++ ] = trackers.stream()
-				.mapToInt( d -> d.length() )
+		colWidths[ id++ ] = Arrays.stream( trackers, 0, size )
+				.map( d -> strings.get( d ).length() )
 				.max()
-				.getAsInt();
+				.orElse( 0 );
 
 		// Tracker param cols.
-		final Set< String > trackerKeys = trackerParams.get( 0 ).keySet();
 		for ( final String dk : trackerKeys )
 			colWidths[ id++ ] = dk.length();
 
@@ -190,28 +491,30 @@ public class TrackingMetricsTable
 		 * Content.
 		 */
 
-		for ( int i = 0; i < size(); i++ )
+		for ( int i = 0; i < size; i++ )
 		{
 			id = 0;
-			final double[] cm = metrics.get( i ).toArray();
-			for ( int j = 0; j < cm.length; j++ )
-				str.append( String.format( "%" + colWidths[ id++ ] + ".3f", cm[ j ] ) );
+			for ( int j = 0; j < metrics.length; j++ )
+				str.append( String.format( "%" + colWidths[ id++ ] + ".3f", metrics[ j ][ i ] ) );
 
-			str.append( String.format( "%" + colWidths[ id++ ] + "s", detectors.get( i ) ) );
+			str.append( String.format( "%" + colWidths[ id++ ] + "s", strings.get( detectors[ i ] ) ) );
 
-			final Map< String, String > dp = detectorParams.get( i );
-			for ( final String dk : detectorKeys )
-				str.append( String.format( "%" + colWidths[ id++ ] + "s", dp.get( dk ) ) );
+			for ( int j = 0; j < detectorKeys.length; j++ )
+				str.append( String.format( "%" + colWidths[ id++ ] + "s", value( detectorParams[ j ][ i ] ) ) );
 
-			str.append( String.format( "%" + colWidths[ id++ ] + "s", trackers.get( i ) ) );
+			str.append( String.format( "%" + colWidths[ id++ ] + "s", strings.get( trackers[ i ] ) ) );
 
-			final Map< String, String > tp = trackerParams.get( i );
-			for ( final String tk : trackerKeys )
-				str.append( String.format( "%" + colWidths[ id++ ] + "s", tp.get( tk ) ) );
+			for ( int j = 0; j < trackerKeys.length; j++ )
+				str.append( String.format( "%" + colWidths[ id++ ] + "s", value( trackerParams[ j ][ i ] ) ) );
 
 			str.append( '\n' );
 		}
 
 		return str.toString();
 	}
+
+	private String value( final int id )
+	{
+		return ( id < 0 ) ? null : strings.get( id );
+	}
 }
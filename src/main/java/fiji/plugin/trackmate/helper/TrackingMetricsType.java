@@ -259,7 +259,7 @@ public abstract class TrackingMetricsType
 		final TrackingMetrics out = new TrackingMetrics( this );
 		// Order is important but is validated with header elsewhere.
 		for ( int i = 0; i < metrics.size(); i++ )
-			out.set( i, Double.valueOf( line[ i ] ) );
+			out.set( i, ResultsCSVParser.parseDouble( line[ i ] ) );
 
 		return out;
 	}
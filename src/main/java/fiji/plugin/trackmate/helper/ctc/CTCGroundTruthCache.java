@@ -0,0 +1,252 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.ctc;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stages CTC ground-truth folders that live on a network file system in a
+ * memory-backed scratch folder, for the duration of a parameter sweep.
+ * <p>
+ * This is a byte-for-byte copy of the ground-truth files, not a cache of the
+ * decoded label images and tracks. The CTC measures only accept paths, so
+ * they still decode the ground-truth TIFF files for every measurement, and
+ * the decoding cost is unchanged. On a local disk the OS page cache already
+ * serves these reads, so the copy would bring nothing, and the ground-truth
+ * is not staged. On a network share (NFS, SMB, SSHFS...) every measurement
+ * reads the whole ground-truth again over the network, and page caching is
+ * weak or disabled. Staging it once per sweep turns these reads into reads
+ * from memory, which is why this class is kept for that case.
+ * <p>
+ * Copies are only made while a sweep is running, between calls to
+ * {@link #beginSweep()} and {@link #endSweep()}, and they are deleted when
+ * the last sweep ends. A ground-truth folder is identified by its path and
+ * by the newest modification time of its files, so an edited ground-truth
+ * is staged again. Copies left over by a JVM that did not exit cleanly are
+ * removed the next time a ground-truth is staged in the same scratch folder.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class CTCGroundTruthCache
+{
+
+	private static final String PREFIX = "CTCGroundTruth_";
+
+	private static final String PID = ManagementFactory.getRuntimeMXBean().getName().split( "@" )[ 0 ];
+
+	/**
+	 * Staged copies, from ground-truth path and newest modification time to
+	 * the root of the copy.
+	 */
+	private static final Map< String, Path > STAGED = new HashMap<>();
+
+	private static int activeSweeps = 0;
+
+	private static boolean shutdownHookInstalled = false;
+
+	/**
+	 * Types of the file stores on which the ground-truth is staged, as
+	 * returned by {@link java.nio.file.FileStore#type()}.
+	 */
+	private static final Set< String > NETWORK_FILE_STORES = new HashSet<>( Arrays.asList(
+			"nfs", "nfs4", "cifs", "smbfs", "smb2", "smb3", "afpfs", "davfs", "fuse.sshfs", "sshfs", "9p" ) );
+
+	private CTCGroundTruthCache()
+	{}
+
+	/**
+	 * Signals that a sweep starts. Ground-truth folders requested until the
+	 * matching call to {@link #endSweep()} are staged in the scratch folder.
+	 */
+	public static synchronized void beginSweep()
+	{
+		activeSweeps++;
+	}
+
+	/**
+	 * Signals that a sweep ended. When no sweep is running anymore, all the
+	 * staged copies are deleted.
+	 */
+	public static synchronized void endSweep()
+	{
+		activeSweeps = Math.max( 0, activeSweeps - 1 );
+		if ( activeSweeps > 0 )
+			return;
+
+		deleteAll();
+	}
+
+	private static synchronized void deleteAll()
+	{
+		for ( final Path root : STAGED.values() )
+			delete( root );
+		STAGED.clear();
+	}
+
+	/**
+	 * Returns the path to a copy of the specified ground-truth folder staged
+	 * in the specified scratch folder. The copy is made only once per
+	 * ground-truth folder and version during a sweep. If no sweep is running,
+	 * if the ground-truth is not on a network file system, or if it cannot be
+	 * copied, the original path is returned.
+	 * 
+	 * @param gtPath
+	 *            the path to the ground-truth folder.
+	 * @param scratchFolder
+	 *            the folder in which to stage the ground-truth. If
+	 *            <code>null</code>, the original path is returned.
+	 * @return the path to use to read the ground-truth.
+	 */
+	public static synchronized String get( final String gtPath, final Path scratchFolder )
+	{
+		if ( scratchFolder == null || activeSweeps == 0 )
+			return gtPath;
+
+		final Path source = Paths.get( gtPath );
+		if ( !Files.isDirectory( source ) )
+			return gtPath;
+
+		Path root = null;
+		try
+		{
+			if ( !NETWORK_FILE_STORES.contains( Files.getFileStore( source ).type() ) )
+				return gtPath;
+
+			// Size and newest modification time.
+			final long[] stats = stats( source );
+			final String key = gtPath + File.pathSeparator + stats[ 1 ];
+			final Path staged = STAGED.get( key );
+			if ( staged != null )
+				return staged.resolve( source.getFileName() ).toString();
+
+			removeLeftovers( scratchFolder );
+			if ( Files.getFileStore( scratchFolder ).getUsableSpace() < 2 * stats[ 0 ] )
+				return gtPath;
+
+			root = Files.createTempDirectory( scratchFolder, PREFIX + PID + "_" );
+			final Path target = root.resolve( source.getFileName() );
+			copyFolder( source, target );
+			STAGED.put( key, root );
+
+			// Backstop if the sweep never ends.
+			if ( !shutdownHookInstalled )
+			{
+				Runtime.getRuntime().addShutdownHook( new Thread( CTCGroundTruthCache::deleteAll ) );
+				shutdownHookInstalled = true;
+			}
+			return target.toString();
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			if ( root != null )
+				delete( root );
+			return gtPath;
+		}
+	}
+
+	/**
+	 * Deletes the copies staged in the specified folder by JVMs that are not
+	 * running anymore. Only possible where the process table is exposed in
+	 * <code>/proc</code>.
+	 */
+	private static final void removeLeftovers( final Path scratchFolder )
+	{
+		final Path proc = Paths.get( "/proc" );
+		if ( !Files.isDirectory( proc ) )
+			return;
+
+		try (DirectoryStream< Path > stream = Files.newDirectoryStream( scratchFolder, PREFIX + "*" ))
+		{
+			for ( final Path folder : stream )
+			{
+				final String[] tokens = folder.getFileName().toString().split( "_" );
+				if ( tokens.length < 3 || !tokens[ 1 ].matches( "\\d+" ) )
+					continue;
+				if ( !Files.exists( proc.resolve( tokens[ 1 ] ) ) )
+					delete( folder );
+			}
+		}
+		catch ( final IOException | RuntimeException e )
+		{}
+	}
+
+	private static final void delete( final Path folder )
+	{
+		try
+		{
+			CTCMetricsRunner.deleteFolder( folder.toString() );
+		}
+		catch ( final RuntimeException e )
+		{}
+	}
+
+	private static final long[] stats( final Path folder ) throws IOException
+	{
+		final long[] stats = new long[] { 0l, Long.MIN_VALUE };
+		Files.walkFileTree( folder, new SimpleFileVisitor< Path >()
+		{
+			@Override
+			public FileVisitResult visitFile( final Path file, final BasicFileAttributes attrs )
+			{
+				stats[ 0 ] += attrs.size();
+				stats[ 1 ] = Math.max( stats[ 1 ], attrs.lastModifiedTime().toMillis() );
+				return FileVisitResult.CONTINUE;
+			}
+		} );
+		return stats;
+	}
+
+	private static final void copyFolder( final Path source, final Path target ) throws IOException
+	{
+		Files.walkFileTree( source, new SimpleFileVisitor< Path >()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory( final Path dir, final BasicFileAttributes attrs ) throws IOException
+			{
+				Files.createDirectories( target.resolve( source.relativize( dir ).toString() ) );
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile( final Path file, final BasicFileAttributes attrs ) throws IOException
+			{
+				Files.copy( file, target.resolve( source.relativize( file ).toString() ), StandardCopyOption.REPLACE_EXISTING );
+				return FileVisitResult.CONTINUE;
+			}
+		} );
+	}
+}
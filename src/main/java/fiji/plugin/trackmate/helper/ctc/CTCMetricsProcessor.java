@@ -23,11 +23,22 @@ package fiji.plugin.trackmate.helper.ctc;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.scijava.Context;
 import org.scijava.log.LogService;
 
+import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.helper.TrackingMetrics;
+import fiji.plugin.trackmate.helper.TrackingMetricsType.MetricValue;
 import io.scif.img.ImgIOException;
 import net.celltrackingchallenge.measures.BCi;
 import net.celltrackingchallenge.measures.CCA;
@@ -63,6 +74,10 @@ public class CTCMetricsProcessor
 
 	private final CTCTrackingMetricsType type;
 
+	private int numThreads = 1;
+
+	private ExecutorService executor;
+
 	public CTCMetricsProcessor( final Context context, final int logLevel )
 	{
 		this.type = new CTCTrackingMetricsType();
@@ -90,61 +105,215 @@ public class CTCMetricsProcessor
 		this.cca = new CCA( logService );
 	}
 
+	/**
+	 * Sets the number of threads to use to compute the CTC measures. With more
+	 * than 1 thread, SEG and CCA are computed concurrently with the TRA, DET,
+	 * CT, TF and BCi measures, which share the TRA cache.
+	 * 
+	 * @param numThreads
+	 *            the number of threads.
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
 	public TrackingMetrics process( final String groundTruthPath, final String resultsFolder ) throws ImgIOException, IOException
 	{
-		double segValue = Double.NaN;
-		try
-		{
-			segValue = seg.calculate( groundTruthPath, resultsFolder );
-		}
-		catch ( final IllegalArgumentException e )
+		return process( groundTruthPath, resultsFolder, Logger.VOID_LOGGER );
+	}
+
+	/**
+	 * Computes the CTC measures and logs the time it took to compute each of
+	 * them.
+	 * 
+	 * @param groundTruthPath
+	 *            the path to the ground-truth folder.
+	 * @param resultsFolder
+	 *            the path to the folder containing the results to measure.
+	 * @param logger
+	 *            a logger to report the time taken by each measure.
+	 * @return the CTC metrics.
+	 * @throws ImgIOException
+	 *             if an image cannot be read.
+	 * @throws IOException
+	 *             if a file cannot be read.
+	 */
+	public TrackingMetrics process( final String groundTruthPath, final String resultsFolder, final Logger logger ) throws ImgIOException, IOException
+	{
+		final TrackingMetrics out = new TrackingMetrics( type );
+		final Map< MetricValue, Double > timings = new ConcurrentHashMap<>();
+
+		// SEG and CCA do not depend on the TRA cache.
+		final Callable< Void > segTask = () -> {
+			try
+			{
+				final double segValue = timed( CTCTrackingMetricsType.SEG, timings, () -> seg.calculate( groundTruthPath, resultsFolder ) );
+				out.set( CTCTrackingMetricsType.SEG, segValue );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				/*
+				 * Could not find the source to compute SEG metrics. Never-mind,
+				 * return NaN.
+				 */
+			}
+			return null;
+		};
+		/*
+		 * As in the sequential measurements, CCA is only reported if the TRA
+		 * chain could be computed. A missing source for CCA yields NaN.
+		 */
+		final Callable< Double > ccaTask = () -> {
+			try
+			{
+				return Double.valueOf( timed( CTCTrackingMetricsType.CCA, timings, () -> cca.calculate( groundTruthPath, resultsFolder ) ) );
+			}
+			catch ( final IllegalArgumentException | FileNotFoundException e )
+			{
+				return Double.valueOf( Double.NaN );
+			}
+		};
+		// Returns false if the TRA chain could not be completed.
+		final Callable< Boolean > traTask = () -> {
+			try
+			{
+				final double traValue = timed( CTCTrackingMetricsType.TRA, timings, () -> tra.calculate( groundTruthPath, resultsFolder ) );
+				out.set( CTCTrackingMetricsType.TRA, traValue );
+				final TrackDataCache sharedCache = tra.getCache();
+				out.set( CTCTrackingMetricsType.DET, timed( CTCTrackingMetricsType.DET, timings, () -> det.calculate( groundTruthPath, resultsFolder, sharedCache ) ) );
+				out.set( CTCTrackingMetricsType.CT, timed( CTCTrackingMetricsType.CT, timings, () -> ct.calculate( groundTruthPath, resultsFolder, sharedCache ) ) );
+				out.set( CTCTrackingMetricsType.TF, timed( CTCTrackingMetricsType.TF, timings, () -> tf.calculate( groundTruthPath, resultsFolder, sharedCache ) ) );
+				out.set( CTCTrackingMetricsType.BC, timed( CTCTrackingMetricsType.BC, timings, () -> bci.calculate( groundTruthPath, resultsFolder, sharedCache ) ) );
+				return Boolean.TRUE;
+			}
+			catch ( final FileNotFoundException e )
+			{
+				/*
+				 * Could not find the source to compute TRA metrics. Never-mind,
+				 * return NaN.
+				 */
+				return Boolean.FALSE;
+			}
+		};
+
+		if ( numThreads > 1 )
 		{
-			/*
-			 * Could not find the source to compute SEG metrics. Never-mind,
-			 * return NaN.
-			 */
+			final ExecutorService executor = getExecutor();
+			final Future< Void > segFuture = executor.submit( segTask );
+			// Computed speculatively, discarded if TRA fails.
+			final Future< Double > ccaFuture = executor.submit( ccaTask );
+			final boolean traDone;
+			try
+			{
+				// The longest chain runs in this thread.
+				traDone = traTask.call().booleanValue();
+			}
+			catch ( final Exception e )
+			{
+				segFuture.cancel( true );
+				ccaFuture.cancel( true );
+				rethrow( e );
+				return out;
+			}
+			if ( !traDone )
+				ccaFuture.cancel( true );
+			get( segFuture );
+			if ( traDone )
+				out.set( CTCTrackingMetricsType.CCA, get( ccaFuture ).doubleValue() );
 		}
-
-		
-		double traValue = Double.NaN;
-		double detValue = Double.NaN;
-		double ctValue = Double.NaN;
-		double tfValue = Double.NaN;
-		double bciValue = Double.NaN;
-		double ccaValue = Double.NaN;
-		try 
+		else
 		{
-			traValue = tra.calculate( groundTruthPath, resultsFolder );
-			final TrackDataCache sharedCache = tra.getCache();
-			detValue = det.calculate( groundTruthPath, resultsFolder, sharedCache );
-			ctValue = ct.calculate( groundTruthPath, resultsFolder, sharedCache );
-			tfValue = tf.calculate( groundTruthPath, resultsFolder, sharedCache );
-			bciValue = bci.calculate( groundTruthPath, resultsFolder, sharedCache );
 			try
 			{
-				ccaValue = cca.calculate( groundTruthPath, resultsFolder );
+				segTask.call();
+				if ( traTask.call().booleanValue() )
+					out.set( CTCTrackingMetricsType.CCA, ccaTask.call().doubleValue() );
 			}
-			catch ( final IllegalArgumentException e )
+			catch ( final Exception e )
 			{
-				ccaValue = Double.NaN;
+				rethrow( e );
 			}
 		}
-		catch ( final FileNotFoundException e )
+
+		// Report timing.
+		logger.log( "Time spent in each CTC measure:\n" );
+		for ( final MetricValue key : type.metrics() )
+		{
+			final Double timing = timings.get( key );
+			if ( timing != null )
+				logger.log( String.format( " - %-4s: %.1f s\n", key.key, timing.doubleValue() ) );
+		}
+		return out;
+	}
+
+	private synchronized ExecutorService getExecutor()
+	{
+		if ( executor == null )
 		{
 			/*
-			 * Could not find the source to compute TRA metrics. Never-mind,
-			 * return NaN.
+			 * At most 2 tasks are submitted concurrently. Idle threads time
+			 * out, so that discarded processors do not leak them.
 			 */
+			final int nThreads = Math.min( 2, numThreads - 1 );
+			final ThreadPoolExecutor pool = new ThreadPoolExecutor( nThreads, nThreads,
+					10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+						final Thread thread = new Thread( r, "CTC measures thread" );
+						thread.setDaemon( true );
+						return thread;
+					} );
+			pool.allowCoreThreadTimeOut( true );
+			executor = pool;
 		}
+		return executor;
+	}
 
-		final TrackingMetrics out = new TrackingMetrics( type );
-		out.set( CTCTrackingMetricsType.SEG, segValue );
-		out.set( CTCTrackingMetricsType.TRA, traValue );
-		out.set( CTCTrackingMetricsType.DET, detValue );
-		out.set( CTCTrackingMetricsType.CT, ctValue );
-		out.set( CTCTrackingMetricsType.TF, tfValue );
-		out.set( CTCTrackingMetricsType.CCA, ccaValue );
-		out.set( CTCTrackingMetricsType.BC, bciValue );
-		return out;
+	@FunctionalInterface
+	private static interface Measure
+	{
+		public double calculate() throws Exception;
+	}
+
+	private static final double timed( final MetricValue key, final Map< MetricValue, Double > timings, final Measure measure ) throws Exception
+	{
+		final long start = System.currentTimeMillis();
+		try
+		{
+			return measure.calculate();
+		}
+		finally
+		{
+			final long end = System.currentTimeMillis();
+			timings.put( key, Double.valueOf( ( end - start ) / 1000. ) );
+		}
+	}
+
+	private static final < T > T get( final Future< T > future ) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted while computing the CTC measures.", e );
+		}
+		catch ( final ExecutionException e )
+		{
+			rethrow( e.getCause() );
+			return null;
+		}
+	}
+
+	private static final void rethrow( final Throwable e ) throws IOException
+	{
+		if ( e instanceof IOException )
+			throw ( IOException ) e;
+		if ( e instanceof RuntimeException )
+			throw ( RuntimeException ) e;
+		if ( e instanceof Error )
+			throw ( Error ) e;
+		throw new IOException( e );
 	}
 }
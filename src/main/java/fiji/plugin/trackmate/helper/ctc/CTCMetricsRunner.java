@@ -29,6 +29,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.scijava.Context;
 
@@ -38,6 +39,8 @@ import fiji.plugin.trackmate.action.CTCExporter;
 import fiji.plugin.trackmate.action.CTCExporter.ExportType;
 import fiji.plugin.trackmate.helper.MetricsRunner;
 import fiji.plugin.trackmate.helper.TrackingMetrics;
+import ij.ImagePlus;
+import net.imglib2.util.ValuePair;
 
 /**
  * Performs tracking and all the CTC metrics measurements with a TrackMate
@@ -48,22 +51,65 @@ import fiji.plugin.trackmate.helper.TrackingMetrics;
 public class CTCMetricsRunner extends MetricsRunner
 {
 
+	/**
+	 * Number of bytes reserved in the scratch folder by the measurements
+	 * running concurrently, in all runners.
+	 */
+	private static final AtomicLong SCRATCH_RESERVED = new AtomicLong( 0 );
+
 	/**
 	 * CTC processor instance.
 	 */
 	private final CTCMetricsProcessor ctc;
 
 	/**
-	 * Path to ground truth folder.
+	 * Path to ground truth folder, possibly staged in the scratch folder.
 	 */
 	private final String gtPath;
 
+	/**
+	 * Folder in which the tracking results are exported to CTC files before
+	 * measurement.
+	 */
+	private Path scratchFolder;
+
 	public CTCMetricsRunner( final String gtPath, final String saveFolder, final Context context )
 	{
 		super( Paths.get( saveFolder ), new CTCTrackingMetricsType() );
-		this.gtPath = gtPath;
 		final int logLevel = 0; // silence CTC logging.
 		this.ctc = new CTCMetricsProcessor( context, logLevel );
+		ctc.setNumThreads( getNumThreads() );
+		this.scratchFolder = defaultScratchFolder();
+		// Copy the ground-truth in memory while a sweep runs.
+		this.gtPath = CTCGroundTruthCache.get( gtPath, scratchFolder );
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		super.setNumThreads( numThreads );
+		ctc.setNumThreads( numThreads );
+	}
+
+	/**
+	 * Sets the folder in which tracking results are exported to CTC files
+	 * before the CTC metrics are measured. The exported files are deleted
+	 * after each measurement.
+	 * <p>
+	 * By default a memory-backed folder (<code>/dev/shm</code>) is used if it
+	 * exists, and the results folder otherwise. The results folder is also
+	 * used when the scratch folder does not have enough room left for an
+	 * export, or when the export fails there. The ground-truth is staged in
+	 * the default scratch folder when the runner is created, and is not
+	 * affected by this setting.
+	 * 
+	 * @param scratchFolder
+	 *            the folder to export CTC files to. If <code>null</code>, the
+	 *            results folder is used.
+	 */
+	public void setScratchFolder( final Path scratchFolder )
+	{
+		this.scratchFolder = scratchFolder;
 	}
 
 	@Override
@@ -74,16 +120,30 @@ public class CTCMetricsRunner extends MetricsRunner
 		final File csvFile = findSuitableCSVFile( settings );
 		final String[] csvHeader1 = toCSVHeader( settings );
 
-		final int id = CTCExporter.getAvailableDatasetID( resultsRootPath.toString() );
-		final String resultsFolder = CTCExporter.getExportTrackingDataPath( resultsRootPath.toString(), id, ExportType.RESULTS, trackmate );
+		// Reserve room in the scratch folder for the export.
+		final long required = requiredSpace( trackmate );
+		final boolean reserved = reserveScratchSpace( required );
+		ValuePair< Path, String > export = null;
 		try
 		{
-			// Export to CTC files.
-			CTCExporter.exportTrackingData( resultsRootPath.toString(), id, ExportType.RESULTS, trackmate, trackmateLogger );
+			if ( reserved )
+			{
+				try
+				{
+					export = export( trackmate, scratchFolder );
+				}
+				catch ( final IOException | IllegalArgumentException e )
+				{
+					batchLogger.log( "Could not export tracking data to CTC files in " + scratchFolder
+							+ ", using the results folder instead:\n" + e.getMessage() + '\n' );
+				}
+			}
+			if ( export == null )
+				export = export( trackmate, resultsRootPath );
 
 			// Perform CTC measurements.
 			batchLogger.log( "Performing CTC metrics measurements.\n" );
-			final TrackingMetrics metrics = ctc.process( gtPath, resultsFolder );
+			final TrackingMetrics metrics = ctc.process( gtPath, export.getB(), batchLogger );
 
 			writeResults( csvFile, metrics, detectionTiming, trackingTiming, settings, csvHeader1 );
 		}
@@ -94,20 +154,102 @@ public class CTCMetricsRunner extends MetricsRunner
 		}
 		finally
 		{
-			try
-			{
-				// Delete CTC export folder.
-				deleteFolder( resultsFolder );
-			}
-			catch ( final RuntimeException e )
-			{
-				batchLogger.error( "Failed to delete CTC export folder: " + resultsFolder + "\n"
-						+ "Please delete it manually later.\n" );
-			}
+			if ( export != null )
+				delete( export.getA() );
+			if ( reserved )
+				SCRATCH_RESERVED.addAndGet( -required );
+		}
+	}
+
+	/**
+	 * Exports the tracking results to CTC files, in a new folder private to
+	 * this measurement in the specified folder, so that several runners can
+	 * work concurrently. Returns the export folder and the path to the CTC
+	 * results in it. The export folder is deleted if the export fails.
+	 */
+	private ValuePair< Path, String > export( final TrackMate trackmate, final Path folder ) throws IOException
+	{
+		final Path exportRoot = Files.createTempDirectory( folder, "CTCExport_" );
+		try
+		{
+			final int id = CTCExporter.getAvailableDatasetID( exportRoot.toString() );
+			final String resultsFolder = CTCExporter.getExportTrackingDataPath( exportRoot.toString(), id, ExportType.RESULTS, trackmate );
+			CTCExporter.exportTrackingData( exportRoot.toString(), id, ExportType.RESULTS, trackmate, trackmateLogger );
+			return new ValuePair<>( exportRoot, resultsFolder );
 		}
+		catch ( final IOException | RuntimeException e )
+		{
+			delete( exportRoot );
+			throw e;
+		}
+	}
+
+	private void delete( final Path exportRoot )
+	{
+		try
+		{
+			// Delete CTC export folder.
+			deleteFolder( exportRoot.toString() );
+		}
+		catch ( final RuntimeException e )
+		{
+			batchLogger.error( "Failed to delete CTC export folder: " + exportRoot + "\n"
+					+ "Please delete it manually later.\n" );
+		}
+	}
+
+	/**
+	 * Returns the room needed to export the CTC files of the specified
+	 * TrackMate instance. Label images are exported as 16-bit images, plus
+	 * some headroom.
+	 */
+	private static final long requiredSpace( final TrackMate trackmate )
+	{
+		final ImagePlus imp = trackmate.getSettings().imp;
+		return 3l * imp.getWidth() * imp.getHeight() * imp.getNSlices() * imp.getNFrames();
+	}
+
+	/**
+	 * Reserves the specified number of bytes in the scratch folder. The space
+	 * reserved by all the measurements running concurrently is deducted from
+	 * the usable space. Returns <code>false</code> if there is no scratch
+	 * folder or if it does not have enough room left, in which case the
+	 * results folder must be used.
+	 */
+	private boolean reserveScratchSpace( final long required )
+	{
+		if ( scratchFolder == null )
+			return false;
+
+		final long usable;
+		try
+		{
+			usable = Files.getFileStore( scratchFolder ).getUsableSpace();
+		}
+		catch ( final IOException e )
+		{
+			return false;
+		}
+
+		while ( true )
+		{
+			final long reserved = SCRATCH_RESERVED.get();
+			if ( usable - reserved <= required )
+				return false;
+			if ( SCRATCH_RESERVED.compareAndSet( reserved, reserved + required ) )
+				return true;
+		}
+	}
+
+	private static final Path defaultScratchFolder()
+	{
+		final Path shm = Paths.get( "/dev/shm" );
+		if ( Files.isDirectory( shm ) && Files.isWritable( shm ) )
+			return shm;
+		return null;
 	}
 
-	private static final void deleteFolder( final String folder )
+	static final void deleteFolder( final String folder )
 	{
 		final Path path = Paths.get( folder );
 		try
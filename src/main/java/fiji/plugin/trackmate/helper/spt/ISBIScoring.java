@@ -28,17 +28,21 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+import fiji.plugin.trackmate.helper.DetectionCache;
+import fiji.plugin.trackmate.helper.spt.importer.SPTBinaryFormat;
 import fiji.plugin.trackmate.helper.spt.importer.SPTFormatImporter;
 import fiji.plugin.trackmate.helper.spt.measure.DistanceTypes;
 import fiji.plugin.trackmate.helper.spt.measure.PerformanceAnalyzer;
+import fiji.plugin.trackmate.helper.spt.measure.PerformanceScores;
 import fiji.plugin.trackmate.helper.spt.measure.TrackProcessorPerformance;
 import fiji.plugin.trackmate.helper.spt.measure.TrackSegment;
 
@@ -47,8 +51,8 @@ public class ISBIScoring
 
 	public static final double[] score( final String referenceTrackPath, final String candidateTrackPath, final double maxDist, final DistanceTypes distType )
 	{
-		final List< TrackSegment > references = SPTFormatImporter.fromXML( new File( referenceTrackPath ) );
-		final List< TrackSegment > candidates = SPTFormatImporter.fromXML( new File( candidateTrackPath ) );
+		final List< TrackSegment > references = loadReference( new File( referenceTrackPath ), null );
+		final List< TrackSegment > candidates = SPTBinaryFormat.load( new File( candidateTrackPath ) );
 		return score( references, candidates, maxDist, distType );
 	}
 
@@ -64,39 +68,130 @@ public class ISBIScoring
 	 */
 	public static final double[] score( final List< TrackSegment > references, final List< TrackSegment > candidates, final double maxDist, final DistanceTypes distType )
 	{
-		/*
-		 * Alpha, beta and RMSE.
-		 */
+		return score( references, candidates, maxDist, distType, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Returns a <code>double[]</code> array with alpha, beta, JSC, JSCtheta and
+	 * RMSE, using the specified number of threads to pair tracks.
+	 * <p>
+	 * The reference tracks are only read, so the same list can be scored
+	 * against several candidate lists concurrently.
+	 * 
+	 * @param references
+	 *            the list of reference track segments.
+	 * @param candidates
+	 *            the list of candidate track segments.
+	 * @param numThreads
+	 *            the number of threads to use to pair tracks.
+	 * @return the ISBI SPT scores.
+	 */
+	public static final double[] score( final List< TrackSegment > references, final List< TrackSegment > candidates, final double maxDist, final DistanceTypes distType, final int numThreads )
+	{
+		return evaluate( references, candidates, maxDist, distType, numThreads ).toArray();
+	}
+
+	/**
+	 * Pairs the candidate tracks with the reference tracks and returns all
+	 * the ISBI SPT scores, along with the track and detection counts they are
+	 * computed from.
+	 * 
+	 * @param references
+	 *            the list of reference track segments.
+	 * @param candidates
+	 *            the list of candidate track segments.
+	 * @param maxDist
+	 *            the maximal distance used to pair tracks.
+	 * @param distType
+	 *            the distance used to pair tracks.
+	 * @param numThreads
+	 *            the number of threads to use to pair tracks.
+	 * @return the ISBI SPT scores.
+	 */
+	public static final PerformanceScores evaluate( final List< TrackSegment > references, final List< TrackSegment > candidates, final double maxDist, final DistanceTypes distType, final int numThreads )
+	{
 		final TrackProcessorPerformance processor = new TrackProcessorPerformance();
+		processor.setNumThreads( numThreads );
 		final PerformanceAnalyzer analyzer = processor.pairTracks( references, candidates, maxDist );
-		final double alpha = analyzer.getPairedTracksNormalizedDistance( distType, maxDist );
-		final double beta = analyzer.getFullTrackingScore( distType, maxDist );
-		final double rmse = analyzer.getDistanceDetectionData( maxDist )[ 0 ];
+		return analyzer.getScores( distType, maxDist );
+	}
 
-		/*
-		 * Detection and track Jaccard indices.
-		 */
-		final int numSpuriousTracks = analyzer.getNumSpuriousTracks();
-		final int numMissedTracks = analyzer.getNumMissedTracks();
-		final int numCorrectTracks = analyzer.getNumPairedTracks();
-		final int numRecoveredDetections = analyzer.getNumPairedDetections( maxDist );
-		final int numMissedDetections = analyzer.getNumMissedDetections( maxDist );
-		final int numWrongDetections = analyzer.getNumWrongDetections( maxDist );
+	public static final void batch( final String referenceTrackPath, final String candidatesFolder, final double maxDist, final DistanceTypes distType )
+	{
+		batch( referenceTrackPath, candidatesFolder, maxDist, distType, Runtime.getRuntime().availableProcessors() );
+	}
 
-		final double detectionsSimilarity = numRecoveredDetections / ( ( double ) numRecoveredDetections + ( double ) numMissedDetections + numWrongDetections );
-		final double tracksSimilarity = numCorrectTracks / ( ( double ) numCorrectTracks + ( double ) numMissedTracks + numSpuriousTracks );
+	/**
+	 * Scores all the candidate files in a folder against a reference file,
+	 * and appends the results to a CSV file named after the reference file,
+	 * in the parent of the candidate folder. Candidates already present in
+	 * this CSV file are skipped.
+	 * <p>
+	 * The reference tracks are read once and shared by all the candidates,
+	 * which are scored concurrently.
+	 * 
+	 * @param referenceTrackPath
+	 *            the path to the reference file.
+	 * @param candidatesFolder
+	 *            the path to the folder containing the candidate files.
+	 * @param maxDist
+	 *            the maximal distance used to pair tracks.
+	 * @param distType
+	 *            the distance used to pair tracks.
+	 * @param nThreads
+	 *            the number of threads to use.
+	 */
+	public static final void batch( final String referenceTrackPath, final String candidatesFolder, final double maxDist, final DistanceTypes distType, final int nThreads )
+	{
+		new ISBIScoringScheduler( maxDist, distType, nThreads )
+				.run( Collections.singletonMap( referenceTrackPath, candidatesFolder ) );
+	}
 
-		return new double[] { alpha, beta, detectionsSimilarity, tracksSimilarity, rmse };
+	/**
+	 * Scores the candidate folders against their reference files, like
+	 * {@link #batch(String, String, double, DistanceTypes)} does for one
+	 * folder.
+	 * <p>
+	 * Each candidate file is scored in its own task, and all the tasks of
+	 * all the folders share one work-stealing pool, bounded by the number of
+	 * cores. The result of each candidate is appended to the CSV file of its
+	 * folder as soon as it is computed, and the file is sorted by candidate
+	 * file name once the folder is done. This method returns when all the
+	 * candidates have been scored.
+	 * 
+	 * @param refToFolders
+	 *            a map from the path of the reference files to the path of
+	 *            the folders of candidate files to score against them.
+	 * @param nThreads
+	 *            the maximal number of threads to use.
+	 * @param maxDist
+	 *            the maximal distance used to pair tracks.
+	 * @param distType
+	 *            the distance used to pair tracks.
+	 */
+	public static final void parallelise( final Map< String, String > refToFolders, final int nThreads, final double maxDist, final DistanceTypes distType )
+	{
+		new ISBIScoringScheduler( maxDist, distType, nThreads ).run( refToFolders );
 	}
 
-	public static final void batch( final String referenceTrackPath, final String candidatesFolder, final double maxDist, final DistanceTypes distType )
+	/**
+	 * Returns the CSV file in which the scores of the candidates of the
+	 * specified folder are written.
+	 */
+	static final File outputFileFor( final String referenceTrackPath, final String candidatesFolder )
 	{
-		System.out.println( "Processing " + candidatesFolder );
-		final File folder = new File( candidatesFolder );
-		final String parent = folder.getParent();
-		final String outputFileName = new File( referenceTrackPath ).getName().replace( ".xml", ".csv" );
-		final File outputFile = new File( parent, outputFileName );
+		final String parent = new File( candidatesFolder ).getParent();
+		final String outputFileName = new File( referenceTrackPath ).getName().replace( ".xml", ".csv" ).replace( SPTBinaryFormat.EXTENSION, ".csv" );
+		return new File( parent, outputFileName );
+	}
 
+	/**
+	 * Returns the names of the candidate files already present in the
+	 * specified CSV file. If the file does not exist, it is created with a
+	 * header line.
+	 */
+	static final Set< String > readAlreadyComputed( final File outputFile )
+	{
 		/*
 		 * Check whether the output files exist if parse it to know what is
 		 * already done.
@@ -138,45 +233,73 @@ public class ISBIScoring
 				e1.printStackTrace();
 			}
 		}
+		return alreadyComputed;
+	}
+
+	/**
+	 * Returns the candidate files of the specified folder, sorted by name,
+	 * or <code>null</code> if the folder cannot be listed.
+	 */
+	static final File[] listCandidates( final String candidatesFolder )
+	{
+		final File[] files = new File( candidatesFolder ).listFiles( ( d, name ) -> name.endsWith( ".xml" ) || name.endsWith( SPTBinaryFormat.EXTENSION ) );
+		if ( files == null )
+			return null;
 
-		final File[] files = folder.listFiles( ( d, name ) -> name.endsWith( ".xml" ) );
+		// One file per base name, so that a converted file is scored once.
+		final Map< String, File > byBaseName = new HashMap<>();
 		for ( final File file : files )
-		{
-			// Test whether we already processed the file.
-			if ( alreadyComputed.contains( file.getName() ) )
-			{
-				System.out.println( " - Found results in target file for " + file.getName() + ". Skipping." );
-				continue;
-			}
-			System.out.println( " - Processing " + file.getName() );
+			byBaseName.merge( baseName( file.getName() ), file, ISBIScoring::preferred );
+		final File[] candidates = byBaseName.values().toArray( new File[ byBaseName.size() ] );
+		Arrays.sort( candidates, Comparator.comparing( File::getName ) );
+		return candidates;
+	}
 
-			try
-			{
-				final long start = System.currentTimeMillis();
-				final double[] score = score( referenceTrackPath, file.getAbsolutePath(), maxDist, distType );
-				try (FileWriter fw = new FileWriter( outputFile, true ))
-				{
-					fw.write( String.format( "%s, %f, %f, %f, %f, %f\n", file.getName(), score[ 0 ], score[ 1 ], score[ 2 ], score[ 3 ], score[ 4 ] ) );
-				}
-				final long end = System.currentTimeMillis();
-				System.out.println( String.format( " - Processed %s in %.1f minutes.", file.getName(), ( end - start ) / 1000. / 60. ) );
-			}
-			catch ( final Exception e )
-			{
-				System.out.println( "Trouble dealing with file " + file + "\nSkipping." );
-				e.printStackTrace();
-				continue;
-			}
-		}
-		System.out.println( "Finished processing " + candidatesFolder );
+	/**
+	 * Between a XML file and its binary copy, prefers the binary copy unless
+	 * it is older than the XML file.
+	 */
+	private static final File preferred( final File f1, final File f2 )
+	{
+		final boolean f1IsBin = f1.getName().endsWith( SPTBinaryFormat.EXTENSION );
+		final File bin = f1IsBin ? f1 : f2;
+		final File xml = f1IsBin ? f2 : f1;
+		return bin.lastModified() >= xml.lastModified() ? bin : xml;
 	}
 
-	public static final void parallelise( final Map< String, String > refToFolders, final int nThreads, final double maxDist, final DistanceTypes distType )
+	/**
+	 * Returns the specified file name without its extension.
+	 */
+	static final String baseName( final String name )
 	{
-		final ExecutorService service = Executors.newFixedThreadPool( nThreads );
+		final int dot = name.lastIndexOf( '.' );
+		return dot < 0 ? name : name.substring( 0, dot );
+	}
 
-		refToFolders.forEach( ( ref, folder ) -> service.submit( () -> batch( ref, folder, maxDist, distType ) ) );
-		service.shutdown();
+	/**
+	 * Reads the reference tracks from a binary file, or from an ISBI'2012 XML
+	 * file through its binary copy in the specified cache folder, so that it
+	 * is parsed only once. If the cache folder is <code>null</code>, the XML
+	 * file is parsed and nothing is written.
+	 */
+	static final List< TrackSegment > loadReference( final File file, final File cacheFolder )
+	{
+		if ( file.getName().endsWith( SPTBinaryFormat.EXTENSION ) )
+			return SPTBinaryFormat.read( file );
+		if ( cacheFolder == null )
+			return SPTFormatImporter.fromXML( file );
+		return SPTBinaryFormat.loadCached( file, cacheFolder );
+	}
+
+	/**
+	 * Returns the folder in which the binary copies of the reference files
+	 * are stored when scoring the specified folder: next to the output CSV
+	 * files.
+	 */
+	static final File cacheFolderFor( final String candidatesFolder )
+	{
+		final String parent = new File( candidatesFolder ).getParent();
+		return new File( parent, DetectionCache.CACHE_FOLDER_NAME );
 	}
 
 	public static void main( final String[] args, final double maxDist, final DistanceTypes distType )
@@ -221,6 +344,6 @@ public class ISBIScoring
 			}
 		}
 
-		parallelise( map, map.size(), maxDist, distType );
+		parallelise( map, Runtime.getRuntime().availableProcessors(), maxDist, distType );
 	}
 }
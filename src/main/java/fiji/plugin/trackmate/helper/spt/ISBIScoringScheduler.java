@@ -0,0 +1,299 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import fiji.plugin.trackmate.helper.spt.importer.SPTBinaryFormat;
+import fiji.plugin.trackmate.helper.spt.measure.DistanceTypes;
+import fiji.plugin.trackmate.helper.spt.measure.TrackSegment;
+
+/**
+ * Scores candidate folders against their reference files, with one task per
+ * (reference, candidate) pair.
+ * <p>
+ * All the tasks run in one work-stealing pool bounded by the number of
+ * cores, so that a large folder does not keep a single thread busy while
+ * the others are idle. The tasks of the largest candidate files are started
+ * first. The reference tracks of a folder are read by the first task that
+ * needs them, shared by the other tasks of the folder, and released when
+ * the folder is done. The result of each candidate is appended to the CSV
+ * file of its folder as soon as it is computed, so that no result is held
+ * in memory. When all the candidates of a folder are scored, its CSV file
+ * is sorted once by candidate file name.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+class ISBIScoringScheduler
+{
+
+	private final double maxDist;
+
+	private final DistanceTypes distType;
+
+	private final int nThreads;
+
+	ISBIScoringScheduler( final double maxDist, final DistanceTypes distType, final int nThreads )
+	{
+		this.maxDist = maxDist;
+		this.distType = distType;
+		this.nThreads = Math.max( 1, Math.min( nThreads, Runtime.getRuntime().availableProcessors() ) );
+	}
+
+	/**
+	 * Scores the candidate folders against their reference files, and
+	 * returns when all the candidates have been scored.
+	 * 
+	 * @param refToFolders
+	 *            a map from the path of the reference files to the path of
+	 *            the folders of candidate files.
+	 */
+	void run( final Map< String, String > refToFolders )
+	{
+		final List< Task > tasks = new ArrayList<>();
+		refToFolders.forEach( ( ref, folder ) -> {
+			System.out.println( "Processing " + folder );
+			final File[] files = ISBIScoring.listCandidates( folder );
+			if ( files == null )
+			{
+				System.out.println( "Cannot list candidate folder " + folder );
+				return;
+			}
+
+			final File outputFile = ISBIScoring.outputFileFor( ref, folder );
+			// Compare base names: a file may have been scored in another format.
+			final Set< String > alreadyComputed = ISBIScoring.readAlreadyComputed( outputFile ).stream()
+					.map( ISBIScoring::baseName )
+					.collect( Collectors.toSet() );
+			final List< File > toCompute = new ArrayList<>( files.length );
+			for ( final File file : files )
+			{
+				// Test whether we already processed the file.
+				if ( alreadyComputed.contains( ISBIScoring.baseName( file.getName() ) ) )
+					System.out.println( " - Found results in target file for " + file.getName() + ". Skipping." );
+				else
+					toCompute.add( file );
+			}
+			if ( toCompute.isEmpty() )
+			{
+				System.out.println( "Finished processing " + folder );
+				return;
+			}
+
+			final Batch batch = new Batch( ref, folder, outputFile, toCompute.size() );
+			for ( final File file : toCompute )
+				tasks.add( new Task( batch, file ) );
+		} );
+		if ( tasks.isEmpty() )
+			return;
+
+		// Largest files first, so that they do not end up last.
+		tasks.sort( Comparator.comparingLong( ( final Task t ) -> t.length ).reversed() );
+
+		// Use the threads left over for track pairing.
+		final int pairingThreads = Math.max( 1, nThreads / tasks.size() );
+		for ( final Task task : tasks )
+			task.pairingThreads = pairingThreads;
+
+		final ForkJoinPool pool = new ForkJoinPool( Math.min( nThreads, tasks.size() ) );
+		try
+		{
+			pool.invokeAll( tasks );
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Scores one candidate file against the reference of its batch.
+	 */
+	private final class Task implements Callable< Void >
+	{
+
+		private final Batch batch;
+
+		private final File file;
+
+		private final long length;
+
+		private int pairingThreads = 1;
+
+		private Task( final Batch batch, final File file )
+		{
+			this.batch = batch;
+			this.file = file;
+			this.length = file.length();
+		}
+
+		@Override
+		public Void call()
+		{
+			String row = null;
+			try
+			{
+				final List< TrackSegment > references = batch.references();
+				if ( references != null )
+				{
+					System.out.println( " - Processing " + file.getName() );
+					final long start = System.currentTimeMillis();
+					final List< TrackSegment > candidates = SPTBinaryFormat.load( file );
+					final double[] score = ISBIScoring.score( references, candidates, maxDist, distType, pairingThreads );
+					row = String.format( "%s, %f, %f, %f, %f, %f\n", file.getName(), score[ 0 ], score[ 1 ], score[ 2 ], score[ 3 ], score[ 4 ] );
+					final long end = System.currentTimeMillis();
+					System.out.println( String.format( " - Processed %s in %.1f minutes.", file.getName(), ( end - start ) / 1000. / 60. ) );
+				}
+			}
+			catch ( final Exception e )
+			{
+				System.out.println( "Trouble dealing with file " + file + "\nSkipping." );
+				e.printStackTrace();
+			}
+			batch.complete( row );
+			return null;
+		}
+	}
+
+	/**
+	 * The candidates of one folder, with their shared reference tracks and
+	 * the writer of their results.
+	 */
+	private static final class Batch
+	{
+
+		private final String referenceTrackPath;
+
+		private final String folder;
+
+		private final File outputFile;
+
+		private int remaining;
+
+		private List< TrackSegment > references;
+
+		private boolean referencesFailed = false;
+
+		private Batch( final String referenceTrackPath, final String folder, final File outputFile, final int size )
+		{
+			this.referenceTrackPath = referenceTrackPath;
+			this.folder = folder;
+			this.outputFile = outputFile;
+			this.remaining = size;
+		}
+
+		/**
+		 * Returns the reference tracks, read on first call. Returns
+		 * <code>null</code> if they cannot be read.
+		 */
+		private synchronized List< TrackSegment > references()
+		{
+			if ( references == null && !referencesFailed )
+			{
+				try
+				{
+					references = ISBIScoring.loadReference( new File( referenceTrackPath ), ISBIScoring.cacheFolderFor( folder ) );
+				}
+				catch ( final Exception e )
+				{
+					referencesFailed = true;
+					System.out.println( "Trouble reading reference file " + referenceTrackPath + "\nSkipping." );
+					e.printStackTrace();
+				}
+			}
+			return references;
+		}
+
+		/**
+		 * Appends the result of a candidate to the output file.
+		 * <code>null</code> for a candidate that could not be scored.
+		 */
+		private synchronized void complete( final String row )
+		{
+			if ( row != null )
+			{
+				try (FileWriter fw = new FileWriter( outputFile, true ))
+				{
+					fw.write( row );
+				}
+				catch ( final IOException e )
+				{
+					System.out.println( "Cannot write to target file " + outputFile );
+					e.printStackTrace();
+				}
+			}
+
+			remaining--;
+			if ( remaining == 0 )
+			{
+				references = null;
+				sortByName( outputFile );
+				System.out.println( "Finished processing " + folder );
+			}
+		}
+	}
+
+	/**
+	 * Sorts the rows of a results CSV file by candidate file name, keeping
+	 * the header first. The sorted rows are written to a temporary file that
+	 * then replaces the results file.
+	 */
+	private static void sortByName( final File outputFile )
+	{
+		try
+		{
+			final Path path = outputFile.toPath();
+			final List< String > lines = Files.readAllLines( path, Charset.defaultCharset() );
+			if ( lines.size() < 3 )
+				return;
+
+			final List< String > rows = lines.subList( 1, lines.size() );
+			rows.sort( Comparator.comparing( ( final String row ) -> {
+				final int idx = row.indexOf( ',' );
+				return idx < 0 ? row : row.substring( 0, idx );
+			} ) );
+			final Path tmp = Files.createTempFile( path.toAbsolutePath().getParent(), outputFile.getName(), ".tmp" );
+			// Same line ends as the rows written by the tasks.
+			Files.write( tmp, ( String.join( "\n", lines ) + '\n' ).getBytes( Charset.defaultCharset() ) );
+			Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING );
+		}
+		catch ( final IOException e )
+		{
+			System.out.println( "Cannot sort target file " + outputFile );
+			e.printStackTrace();
+		}
+	}
+}
@@ -28,10 +28,13 @@ import java.util.List;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.helper.DetectionCache;
 import fiji.plugin.trackmate.helper.MetricsRunner;
 import fiji.plugin.trackmate.helper.TrackingMetrics;
+import fiji.plugin.trackmate.helper.spt.importer.SPTBinaryFormat;
 import fiji.plugin.trackmate.helper.spt.importer.SPTFormatImporter;
 import fiji.plugin.trackmate.helper.spt.measure.DistanceTypes;
+import fiji.plugin.trackmate.helper.spt.measure.PerformanceScores;
 import fiji.plugin.trackmate.helper.spt.measure.TrackSegment;
 
 public class SPTMetricsRunner extends MetricsRunner
@@ -44,7 +47,9 @@ public class SPTMetricsRunner extends MetricsRunner
 	public SPTMetricsRunner( final String gtPath, final String saveFolder )
 	{
 		super( Paths.get( saveFolder ), new SPTTrackingMetricsType() );
-		this.referenceTracks = SPTFormatImporter.fromXML( new File( gtPath ) );
+		// Keep the binary copy of the ground-truth with the other caches.
+		final File cacheFolder = Paths.get( saveFolder, DetectionCache.CACHE_FOLDER_NAME ).toFile();
+		this.referenceTracks = SPTBinaryFormat.loadCached( new File( gtPath ), cacheFolder );
 	}
 
 	@Override
@@ -59,7 +64,8 @@ public class SPTMetricsRunner extends MetricsRunner
 
 		// Perform SPT measurements.
 		batchLogger.log( "Performing SPT metrics measurements.\n" );
-		final double[] score = ISBIScoring.score( referenceTracks, candidateTracks, maxDist, DistanceTypes.DISTANCE_EUCLIDIAN );
+		final PerformanceScores scores = ISBIScoring.evaluate( referenceTracks, candidateTracks, maxDist, DistanceTypes.DISTANCE_EUCLIDIAN, getNumThreads() );
+		final double[] score = scores.toArray();
 
 		final TrackingMetrics metrics = new TrackingMetrics( type );
 		for ( int i = 0; i < score.length; i++ )
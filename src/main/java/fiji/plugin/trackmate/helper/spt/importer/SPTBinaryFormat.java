@@ -0,0 +1,451 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.importer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import fiji.plugin.trackmate.helper.spt.measure.Detection;
+import fiji.plugin.trackmate.helper.spt.measure.TrackSegment;
+
+/**
+ * A compact binary format for SPT tracks, read with memory-mapping.
+ * <p>
+ * The tracks are stored after they are imported: gaps are already filled
+ * with virtual detections and the NaN detections are already trimmed, so
+ * that reading a file gives the same tracks as reading the ISBI'2012 XML
+ * file it was converted from. The file is little-endian and made of
+ * columns:
+ * 
+ * <pre>
+ * header     magic "SPTTRACK", version, numTracks, numDetections, 0
+ * x, y, z    double[numDetections] each
+ * offsets    int[numTracks + 1], detections of track i are in
+ *            [offsets[i], offsets[i+1])
+ * t          int[numDetections]
+ * type       byte[numDetections], the detection type
+ * </pre>
+ * 
+ * Files are mapped in memory for reading, and the tracks are decoded from
+ * the mapped columns only when they are first accessed. This format is
+ * meant to avoid parsing the same ground-truth XML file many times when
+ * scoring a batch of candidate files against it.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class SPTBinaryFormat
+{
+
+	/**
+	 * The extension of the files in this format.
+	 */
+	public static final String EXTENSION = ".sptbin";
+
+	private static final byte[] MAGIC = "SPTTRACK".getBytes( StandardCharsets.US_ASCII );
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = MAGIC.length + 4 * 4;
+
+	private SPTBinaryFormat()
+	{}
+
+	/**
+	 * Reads the tracks stored in the specified file, in this binary format
+	 * or in the ISBI'2012 XML format, depending on its extension.
+	 * 
+	 * @param file
+	 *            the file to read.
+	 * @return a new list of tracks.
+	 * @throws IllegalArgumentException
+	 *             if the file cannot be read or does not follow the format.
+	 */
+	public static List< TrackSegment > load( final File file ) throws IllegalArgumentException
+	{
+		if ( file.getName().endsWith( EXTENSION ) )
+			return read( file );
+		return SPTFormatImporter.fromXML( file );
+	}
+
+	/**
+	 * Reads the tracks of the specified ISBI'2012 XML file, using a binary
+	 * copy of this file stored in the specified cache folder, so that the
+	 * folder of the XML file is left untouched. The cache folder is created
+	 * if needed. The binary copy is created when it does not exist or when it
+	 * is older than the XML file. If it cannot be created, the XML file is
+	 * read directly.
+	 * 
+	 * @param xmlFile
+	 *            the XML file to read.
+	 * @param cacheFolder
+	 *            the folder in which to store the binary copy.
+	 * @return a new list of tracks.
+	 * @throws IllegalArgumentException
+	 *             if the XML file cannot be read or does not follow the
+	 *             format.
+	 */
+	public static List< TrackSegment > loadCached( final File xmlFile, final File cacheFolder ) throws IllegalArgumentException
+	{
+		cacheFolder.mkdirs();
+		return readThrough( xmlFile, cacheFileFor( xmlFile, cacheFolder ) );
+	}
+
+	private static List< TrackSegment > readThrough( final File xmlFile, final File binFile ) throws IllegalArgumentException
+	{
+		if ( binFile.isFile() && binFile.lastModified() >= xmlFile.lastModified() )
+		{
+			try
+			{
+				return read( binFile );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				// Corrupted or from another version. Rebuild it.
+			}
+		}
+
+		final List< TrackSegment > tracks = SPTFormatImporter.fromXML( xmlFile );
+		try
+		{
+			write( tracks, binFile );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			// Read-only folder or disk full. We still have the tracks.
+		}
+		return tracks;
+	}
+
+	/**
+	 * Returns the file in which the binary copy of the specified XML file is
+	 * stored by {@link #loadCached(File, File)}. The file name includes a
+	 * hash of the XML file path, so that XML files with the same name in
+	 * different folders do not share their binary copy.
+	 * 
+	 * @param xmlFile
+	 *            the XML file.
+	 * @param cacheFolder
+	 *            the folder in which binary copies are stored.
+	 * @return the binary file.
+	 */
+	public static File cacheFileFor( final File xmlFile, final File cacheFolder )
+	{
+		final String hash = Integer.toHexString( xmlFile.getAbsolutePath().hashCode() );
+		return new File( cacheFolder, baseName( xmlFile ) + "_" + hash + EXTENSION );
+	}
+
+	private static final String baseName( final File file )
+	{
+		final String name = file.getName();
+		final int dot = name.lastIndexOf( '.' );
+		return dot < 0 ? name : name.substring( 0, dot );
+	}
+
+	/**
+	 * Converts an ISBI'2012 XML file to this binary format.
+	 * 
+	 * @param xmlFile
+	 *            the XML file to read.
+	 * @param binFile
+	 *            the binary file to write.
+	 * @throws IllegalArgumentException
+	 *             if a file cannot be read or written.
+	 */
+	public static void fromXML( final File xmlFile, final File binFile ) throws IllegalArgumentException
+	{
+		write( SPTFormatImporter.fromXML( xmlFile ), binFile );
+	}
+
+	/**
+	 * Converts a file in this binary format to an ISBI'2012 XML file.
+	 * 
+	 * @param binFile
+	 *            the binary file to read.
+	 * @param xmlFile
+	 *            the XML file to write.
+	 * @throws IllegalArgumentException
+	 *             if a file cannot be read or written.
+	 */
+	public static void toXML( final File binFile, final File xmlFile ) throws IllegalArgumentException
+	{
+		SPTFormatImporter.toXML( xmlFile, new ArrayList<>( read( binFile ) ) );
+	}
+
+	/**
+	 * Writes the specified tracks to a file in this binary format. The file
+	 * is first written to a temporary file, then moved in place.
+	 * 
+	 * @param tracks
+	 *            the tracks to write.
+	 * @param file
+	 *            the file to write.
+	 * @throws IllegalArgumentException
+	 *             if the file cannot be written.
+	 */
+	public static void write( final List< TrackSegment > tracks, final File file ) throws IllegalArgumentException
+	{
+		final int numTracks = tracks.size();
+		long n = 0;
+		for ( final TrackSegment track : tracks )
+			n += track.getDetectionList().size();
+		final long size = HEADER_SIZE + 29l * n + 4l * ( numTracks + 1 );
+		if ( size > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Too many detections to write in file " + file + ": " + n );
+		final int numDetections = ( int ) n;
+
+		File tmp = null;
+		try
+		{
+			final File parent = file.getAbsoluteFile().getParentFile();
+			tmp = File.createTempFile( "tracks", ".tmp", parent );
+			try (final FileChannel channel = FileChannel.open( tmp.toPath(), StandardOpenOption.WRITE ))
+			{
+				final ByteBuffer buffer = ByteBuffer.allocateDirect( 1 << 16 ).order( ByteOrder.LITTLE_ENDIAN );
+				buffer.put( MAGIC );
+				buffer.putInt( VERSION );
+				buffer.putInt( numTracks );
+				buffer.putInt( numDetections );
+				buffer.putInt( 0 );
+
+				for ( int c = 0; c < 3; c++ )
+				{
+					for ( final TrackSegment track : tracks )
+					{
+						for ( final Detection d : track.getDetectionList() )
+						{
+							ensureRemaining( channel, buffer, 8 );
+							buffer.putDouble( c == 0 ? d.getX() : c == 1 ? d.getY() : d.getZ() );
+						}
+					}
+				}
+
+				int offset = 0;
+				ensureRemaining( channel, buffer, 4 );
+				buffer.putInt( offset );
+				for ( final TrackSegment track : tracks )
+				{
+					offset += track.getDetectionList().size();
+					ensureRemaining( channel, buffer, 4 );
+					buffer.putInt( offset );
+				}
+
+				for ( final TrackSegment track : tracks )
+				{
+					for ( final Detection d : track.getDetectionList() )
+					{
+						ensureRemaining( channel, buffer, 4 );
+						buffer.putInt( d.getT() );
+					}
+				}
+
+				for ( final TrackSegment track : tracks )
+				{
+					for ( final Detection d : track.getDetectionList() )
+					{
+						ensureRemaining( channel, buffer, 1 );
+						buffer.put( ( byte ) d.getDetectionType() );
+					}
+				}
+
+				buffer.flip();
+				while ( buffer.hasRemaining() )
+					channel.write( buffer );
+			}
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final IOException e )
+		{
+			throw new IllegalArgumentException( "Could not write file " + file + ": " + e.getMessage(), e );
+		}
+		finally
+		{
+			if ( tmp != null )
+				tmp.delete();
+		}
+	}
+
+	private static final void ensureRemaining( final FileChannel channel, final ByteBuffer buffer, final int n ) throws IOException
+	{
+		if ( buffer.remaining() >= n )
+			return;
+		buffer.flip();
+		while ( buffer.hasRemaining() )
+			channel.write( buffer );
+		buffer.clear();
+	}
+
+	/**
+	 * Reads the tracks stored in a file in this binary format.
+	 * <p>
+	 * The file is mapped in memory, and the returned list is an unmodifiable
+	 * view over the mapped columns. Each track is decoded the first time it
+	 * is accessed, then the same {@link TrackSegment} instance is returned.
+	 * The list can be shared between threads.
+	 * 
+	 * @param file
+	 *            the file to read.
+	 * @return a new list of tracks.
+	 * @throws IllegalArgumentException
+	 *             if the file cannot be read or does not follow the format.
+	 */
+	public static List< TrackSegment > read( final File file ) throws IllegalArgumentException
+	{
+		final ByteBuffer buffer;
+		try (final FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ))
+		{
+			if ( channel.size() > Integer.MAX_VALUE )
+				throw new IllegalArgumentException( "File " + file + " is too large." );
+			buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ).order( ByteOrder.LITTLE_ENDIAN );
+		}
+		catch ( final IOException e )
+		{
+			throw new IllegalArgumentException( "Could not read file " + file + ": " + e.getMessage(), e );
+		}
+
+		if ( buffer.capacity() < HEADER_SIZE )
+			throw new IllegalArgumentException( "File " + file + " is not an SPT binary track file." );
+		for ( int i = 0; i < MAGIC.length; i++ )
+			if ( buffer.get( i ) != MAGIC[ i ] )
+				throw new IllegalArgumentException( "File " + file + " is not an SPT binary track file." );
+		final int version = buffer.getInt( MAGIC.length );
+		if ( version != VERSION )
+			throw new IllegalArgumentException( "Unsupported version of SPT binary track file " + file + ": " + version );
+
+		final int numTracks = buffer.getInt( MAGIC.length + 4 );
+		final int numDetections = buffer.getInt( MAGIC.length + 8 );
+		final long expected = HEADER_SIZE + 29l * numDetections + 4l * ( numTracks + 1l );
+		if ( numTracks < 0 || numDetections < 0 || expected != buffer.capacity() )
+			throw new IllegalArgumentException( "File " + file + " is truncated or corrupted." );
+
+		final TrackColumns columns = new TrackColumns( buffer, numTracks, numDetections );
+		int previous = columns.offset( 0 );
+		if ( previous != 0 || columns.offset( numTracks ) != numDetections )
+			throw new IllegalArgumentException( "File " + file + " is truncated or corrupted." );
+		for ( int i = 1; i <= numTracks; i++ )
+		{
+			final int offset = columns.offset( i );
+			if ( offset < previous )
+				throw new IllegalArgumentException( "File " + file + " is truncated or corrupted." );
+			previous = offset;
+		}
+		return columns;
+	}
+
+	/**
+	 * The tracks of a mapped file, seen as a list of {@link TrackSegment}s
+	 * decoded when first accessed.
+	 */
+	private static final class TrackColumns extends AbstractList< TrackSegment > implements RandomAccess
+	{
+
+		private final ByteBuffer buffer;
+
+		private final int numTracks;
+
+		private final int xPos;
+
+		private final int yPos;
+
+		private final int zPos;
+
+		private final int offsetPos;
+
+		private final int tPos;
+
+		private final int typePos;
+
+		private final AtomicReferenceArray< TrackSegment > decoded;
+
+		private TrackColumns( final ByteBuffer buffer, final int numTracks, final int numDetections )
+		{
+			this.buffer = buffer;
+			this.numTracks = numTracks;
+			this.xPos = HEADER_SIZE;
+			this.yPos = xPos + 8 * numDetections;
+			this.zPos = yPos + 8 * numDetections;
+			this.offsetPos = zPos + 8 * numDetections;
+			this.tPos = offsetPos + 4 * ( numTracks + 1 );
+			this.typePos = tPos + 4 * numDetections;
+			this.decoded = new AtomicReferenceArray<>( numTracks );
+		}
+
+		private int offset( final int track )
+		{
+			return buffer.getInt( offsetPos + 4 * track );
+		}
+
+		@Override
+		public TrackSegment get( final int index )
+		{
+			final TrackSegment track = decoded.get( index );
+			if ( track != null )
+				return track;
+
+			synchronized ( this )
+			{
+				TrackSegment ts = decoded.get( index );
+				if ( ts == null )
+				{
+					ts = decode( index );
+					decoded.set( index, ts );
+				}
+				return ts;
+			}
+		}
+
+		private TrackSegment decode( final int index )
+		{
+			final int start = offset( index );
+			final int end = offset( index + 1 );
+			final ArrayList< Detection > detections = new ArrayList<>( end - start );
+			for ( int i = start; i < end; i++ )
+			{
+				final Detection detection = new Detection(
+						buffer.getDouble( xPos + 8 * i ),
+						buffer.getDouble( yPos + 8 * i ),
+						buffer.getDouble( zPos + 8 * i ),
+						buffer.getInt( tPos + 4 * i ) );
+				detection.setDetectionType( buffer.get( typePos + i ) );
+				detections.add( detection );
+			}
+			return new TrackSegment( detections );
+		}
+
+		@Override
+		public int size()
+		{
+			return numTracks;
+		}
+	}
+}
@@ -21,15 +21,28 @@
  */
 package fiji.plugin.trackmate.helper.spt.importer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Spot;
@@ -77,47 +90,146 @@ public class SPTFormatImporter
 		return tracks;
 	}
 
+	/**
+	 * Reads the tracks stored in a file in the format used for the ISBI'2012
+	 * Particle tracking challenge.
+	 * <p>
+	 * The file is read as a stream, without building a DOM in memory, so
+	 * that very large files can be read.
+	 * 
+	 * @param inputFile
+	 *            the .xml file to read.
+	 * @return a new list of tracks.
+	 * @throws IllegalArgumentException
+	 *             if the file cannot be read or does not follow the format.
+	 */
 	public static List< TrackSegment > fromXML( final File inputFile ) throws IllegalArgumentException
 	{
 		final List< TrackSegment > tracks = new ArrayList< TrackSegment >();
-		final Document document = XMLUtil.loadDocument( inputFile );
-		final Element root = XMLUtil.getRootElement( document );
-		if ( root == null )
-		{ throw new IllegalArgumentException( "can't find: <root> tag." ); }
-		final Element trackingSet = XMLUtil.getElements( root, "TrackContestISBI2012" ).get( 0 );
-
-		if ( trackingSet == null )
-			throw new IllegalArgumentException( "can't find: <root><TrackContestISBI2012> tag." );
-
-		final List< Element > particleElementArrayList = XMLUtil.getElements( trackingSet, "particle" );
-
-		for ( final Element particleElement : particleElementArrayList )
+		try (final InputStream is = new BufferedInputStream( new FileInputStream( inputFile ), 1 << 16 ))
 		{
-			final List< Element > detectionElementArrayList = XMLUtil.getElements( particleElement, "detection" );
-			final TreeMap< Integer, Detection > detections = new TreeMap< Integer, Detection >();
-			for ( final Element detectionElement : detectionElementArrayList )
+			final XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE );
+			factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE );
+			factory.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE );
+			final XMLStreamReader reader = factory.createXMLStreamReader( is );
+			try
 			{
-				final int t = XMLUtil.getAttributeIntValue( detectionElement, "t", -1 );
-				if ( t < 0 )
-					throw new IllegalArgumentException( "invalid t value: " + t );
-				if ( detections.containsKey( Integer.valueOf( t ) ) )
-					throw new IllegalArgumentException( "duplicated detection for a single track at time " + t );
-				final double x = XMLUtil.getAttributeDoubleValue( detectionElement, "x", 0 );
-				final double y = XMLUtil.getAttributeDoubleValue( detectionElement, "y", 0 );
-				final double z = XMLUtil.getAttributeDoubleValue( detectionElement, "z", 0 );
-				final Detection detection = new Detection( x, y, z, t );
-				detection.setDetectionType( Detection.DETECTIONTYPE_REAL_DETECTION );
-				detections.put( Integer.valueOf( t ), detection );
+				readTracks( reader, tracks );
+			}
+			finally
+			{
+				reader.close();
 			}
-			if ( !detections.isEmpty() )
-				tracks.add( makeTrack( detections ) );
+		}
+		catch ( final IOException | XMLStreamException e )
+		{
+			throw new IllegalArgumentException( "Could not read file " + inputFile + ": " + e.getMessage(), e );
 		}
 		trimTrack( tracks );
 		return tracks;
 	}
 
+	/*
+	 * Reads the particles of the first <TrackContestISBI2012> element under
+	 * the root element. Other elements are skipped.
+	 */
+	private static void readTracks( final XMLStreamReader reader, final List< TrackSegment > tracks ) throws XMLStreamException
+	{
+		if ( nextTag( reader ) != XMLStreamConstants.START_ELEMENT )
+			throw new IllegalArgumentException( "can't find: <root> tag." );
+
+		boolean found = false;
+		while ( nextTag( reader ) == XMLStreamConstants.START_ELEMENT )
+		{
+			if ( found || !"TrackContestISBI2012".equals( reader.getLocalName() ) )
+			{
+				skipElement( reader );
+				continue;
+			}
+			found = true;
+
+			while ( nextTag( reader ) == XMLStreamConstants.START_ELEMENT )
+			{
+				if ( !"particle".equals( reader.getLocalName() ) )
+				{
+					skipElement( reader );
+					continue;
+				}
+
+				final TreeMap< Integer, Detection > detections = new TreeMap< Integer, Detection >();
+				while ( nextTag( reader ) == XMLStreamConstants.START_ELEMENT )
+				{
+					if ( "detection".equals( reader.getLocalName() ) )
+					{
+						final int t = StringUtil.parseInt( attribute( reader, "t" ), -1 );
+						if ( t < 0 )
+							throw new IllegalArgumentException( "invalid t value: " + t );
+						if ( detections.containsKey( Integer.valueOf( t ) ) )
+							throw new IllegalArgumentException( "duplicated detection for a single track at time " + t );
+						final double x = StringUtil.parseDouble( attribute( reader, "x" ), 0 );
+						final double y = StringUtil.parseDouble( attribute( reader, "y" ), 0 );
+						final double z = StringUtil.parseDouble( attribute( reader, "z" ), 0 );
+						final Detection detection = new Detection( x, y, z, t );
+						detection.setDetectionType( Detection.DETECTIONTYPE_REAL_DETECTION );
+						detections.put( Integer.valueOf( t ), detection );
+					}
+					skipElement( reader );
+				}
+				if ( !detections.isEmpty() )
+					tracks.add( makeTrack( detections ) );
+			}
+		}
+		if ( !found )
+			throw new IllegalArgumentException( "can't find: <root><TrackContestISBI2012> tag." );
+	}
+
+	/*
+	 * Moves to the next start or end tag, ignoring text, comments and
+	 * processing instructions.
+	 */
+	private static int nextTag( final XMLStreamReader reader ) throws XMLStreamException
+	{
+		while ( reader.hasNext() )
+		{
+			final int event = reader.next();
+			if ( event == XMLStreamConstants.START_ELEMENT || event == XMLStreamConstants.END_ELEMENT )
+				return event;
+		}
+		return XMLStreamConstants.END_DOCUMENT;
+	}
+
+	/*
+	 * Returns the value of the specified attribute of the current element,
+	 * or an empty string if it is not set.
+	 */
+	private static String attribute( final XMLStreamReader reader, final String name )
+	{
+		final String value = reader.getAttributeValue( null, name );
+		return value == null ? "" : value;
+	}
+
+	/*
+	 * Skips the content of the current element, leaving the reader on its
+	 * end tag.
+	 */
+	private static void skipElement( final XMLStreamReader reader ) throws XMLStreamException
+	{
+		int depth = 1;
+		while ( depth > 0 )
+		{
+			final int event = reader.next();
+			if ( event == XMLStreamConstants.START_ELEMENT )
+				depth++;
+			else if ( event == XMLStreamConstants.END_ELEMENT )
+				depth--;
+		}
+	}
+
 	/**
 	 * Export TrackSegment objects to a .xml file.
+	 * <p>
+	 * The file is written as a stream, without building a DOM in memory.
 	 * 
 	 * @param file
 	 *            output .xml file containing track information in the format
@@ -125,31 +237,53 @@ public class SPTFormatImporter
 	 * @param tracks
 	 *            a list of TrackSegment objects that corresponds to the tracks
 	 *            to save
-	 * 
+	 * @throws IllegalArgumentException
+	 *             if the file cannot be written.
 	 */
 	public static void toXML( final File file, final ArrayList< TrackSegment > tracks ) throws IllegalArgumentException
 	{
-		final Document document = XMLUtil.createDocument( true );
-		final Element dataSetElement = document.createElement( "TrackContestISBI2012" );
-		XMLUtil.getRootElement( document ).appendChild( dataSetElement );
-
-		for ( final TrackSegment particle : tracks )
+		try (final Writer out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), StandardCharsets.UTF_8 ), 1 << 16 ))
 		{
-			final Element particleElement = document.createElement( "particle" );
-			dataSetElement.appendChild( particleElement );
-
-			for ( final Detection detection : particle.getDetectionList() )
+			final XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter( out );
+			writer.writeStartDocument( "UTF-8", "1.0" );
+			writer.writeCharacters( "\n" );
+			writer.writeStartElement( XMLUtil.NODE_ROOT_NAME );
+			writer.writeCharacters( "\n    " );
+			writer.writeStartElement( "TrackContestISBI2012" );
+			for ( final TrackSegment particle : tracks )
 			{
-				final Element detectionElement = document.createElement( "detection" );
-				particleElement.appendChild( detectionElement );
-				XMLUtil.setAttributeDoubleValue( detectionElement, "x", detection.getX() );
-				XMLUtil.setAttributeDoubleValue( detectionElement, "y", detection.getY() );
-				XMLUtil.setAttributeDoubleValue( detectionElement, "z", detection.getZ() );
-				XMLUtil.setAttributeIntValue( detectionElement, "t", detection.getT() );
+				writer.writeCharacters( "\n        " );
+				if ( particle.getDetectionList().isEmpty() )
+				{
+					writer.writeEmptyElement( "particle" );
+					continue;
+				}
+
+				writer.writeStartElement( "particle" );
+				for ( final Detection detection : particle.getDetectionList() )
+				{
+					writer.writeCharacters( "\n            " );
+					writer.writeEmptyElement( "detection" );
+					writer.writeAttribute( "t", StringUtil.toString( detection.getT() ) );
+					writer.writeAttribute( "x", StringUtil.toString( detection.getX() ) );
+					writer.writeAttribute( "y", StringUtil.toString( detection.getY() ) );
+					writer.writeAttribute( "z", StringUtil.toString( detection.getZ() ) );
+				}
+				writer.writeCharacters( "\n        " );
+				writer.writeEndElement();
 			}
+			writer.writeCharacters( "\n    " );
+			writer.writeEndElement();
+			writer.writeCharacters( "\n" );
+			writer.writeEndElement();
+			writer.writeCharacters( "\n" );
+			writer.writeEndDocument();
+			writer.close();
+		}
+		catch ( final IOException | XMLStreamException e )
+		{
+			throw new IllegalArgumentException( "Could not write file " + file + ": " + e.getMessage(), e );
 		}
-
-		XMLUtil.saveDocument( document, file );
 	}
 
 	/*
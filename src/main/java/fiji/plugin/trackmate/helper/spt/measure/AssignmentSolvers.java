@@ -0,0 +1,35 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+/**
+ * Solvers that can be used to find the best one-to-one matching between
+ * reference and candidate tracks. HUNGARIAN and HUNGARIAN_NEW solve a dense
+ * cost matrix per cluster of track pairs. SPARSE solves directly on the
+ * feasible track pairs, which is much faster and lighter on large clusters.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public enum AssignmentSolvers
+{
+	HUNGARIAN, HUNGARIAN_NEW, SPARSE
+}
@@ -0,0 +1,227 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spatio-temporal index over a set of candidate tracks, used to prune the
+ * candidate tracks that cannot be matched to a reference track.
+ * <p>
+ * A candidate track can be matched to a reference track only if at one time
+ * point of their common time interval, the candidate track has a real
+ * detection closer than the gate to the reference track detection. This
+ * index bins the real detections of all candidate tracks by frame and in a
+ * grid of cells whose size is the gate. Querying for a reference track only
+ * inspects the cells that are close to its detections, at the same frame.
+ * This takes care of the time-overlap and of the spatial proximity at the
+ * same time.
+ * <p>
+ * The query may return a few candidate tracks that are not matching (for
+ * instance if a candidate track has several detections at the same frame),
+ * but it never misses a candidate track that is matching. The feasibility of
+ * the returned tracks must still be assessed with a
+ * {@link TrackToTrackDistance}.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class CandidateTrackIndex
+{
+
+	/**
+	 * Relative slack added to the cell search range, so that rounding errors
+	 * never exclude a detection closer than the gate.
+	 */
+	private static final double SLACK = 1e-9;
+
+	private final int nCandidates;
+
+	private final double maxDist;
+
+	private final double cellSize;
+
+	/**
+	 * Map from the cell key to the entries in this cell, as indices in the
+	 * entry arrays.
+	 */
+	private final Map< Long, int[] > cells;
+
+	/*
+	 * Entries: one per real detection of the candidate tracks.
+	 */
+
+	private final int[] entryTrack;
+
+	private final int[] entryT;
+
+	private final double[] entryX;
+
+	private final double[] entryY;
+
+	private final double[] entryZ;
+
+	/**
+	 * Builds an index over the specified candidate tracks.
+	 * 
+	 * @param candidateTracks
+	 *            the candidate tracks. The indices returned by
+	 *            {@link #query(TrackSegment)} are indices in this list.
+	 * @param maxDist
+	 *            the gate (maximum Euclidian distance between two detections).
+	 *            Must be strictly positive and finite.
+	 */
+	public CandidateTrackIndex( final List< TrackSegment > candidateTracks, final double maxDist )
+	{
+		if ( !( maxDist > 0 ) || Double.isInfinite( maxDist ) )
+			throw new IllegalArgumentException( "The gate must be strictly positive and finite, got " + maxDist );
+
+		this.nCandidates = candidateTracks.size();
+		this.maxDist = maxDist;
+		this.cellSize = maxDist;
+
+		int nEntries = 0;
+		for ( final TrackSegment ts : candidateTracks )
+			for ( final Detection d : ts.getDetectionList() )
+				if ( d.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION )
+					nEntries++;
+
+		this.entryTrack = new int[ nEntries ];
+		this.entryT = new int[ nEntries ];
+		this.entryX = new double[ nEntries ];
+		this.entryY = new double[ nEntries ];
+		this.entryZ = new double[ nEntries ];
+
+		final Map< Long, List< Integer > > binned = new HashMap<>();
+		int e = 0;
+		for ( int i = 0; i < candidateTracks.size(); i++ )
+		{
+			for ( final Detection d : candidateTracks.get( i ).getDetectionList() )
+			{
+				if ( d.getDetectionType() != Detection.DETECTIONTYPE_REAL_DETECTION )
+					continue;
+
+				entryTrack[ e ] = i;
+				entryT[ e ] = d.getT();
+				entryX[ e ] = d.getX();
+				entryY[ e ] = d.getY();
+				entryZ[ e ] = d.getZ();
+				final long key = key( d.getT(), cell( d.getX() ), cell( d.getY() ), cell( d.getZ() ) );
+				binned.computeIfAbsent( Long.valueOf( key ), k -> new ArrayList<>() ).add( Integer.valueOf( e ) );
+				e++;
+			}
+		}
+
+		this.cells = new HashMap<>( binned.size() * 4 / 3 + 1 );
+		for ( final Map.Entry< Long, List< Integer > > entry : binned.entrySet() )
+		{
+			final List< Integer > list = entry.getValue();
+			final int[] arr = new int[ list.size() ];
+			for ( int k = 0; k < arr.length; k++ )
+				arr[ k ] = list.get( k ).intValue();
+			cells.put( entry.getKey(), arr );
+		}
+	}
+
+	/**
+	 * Returns the indices of the candidate tracks that have a real detection
+	 * closer than the gate to a detection of the specified reference track,
+	 * at the same frame.
+	 * 
+	 * @param refTrack
+	 *            the reference track.
+	 * @return the candidate track indices, sorted in ascending order.
+	 */
+	public int[] query( final TrackSegment refTrack )
+	{
+		final boolean[] found = new boolean[ nCandidates ];
+		int nFound = 0;
+		final double range = maxDist * ( 1. + SLACK );
+		for ( final Detection d1 : refTrack.getDetectionList() )
+		{
+			final int t = d1.getT();
+			final double x = d1.getX();
+			final double y = d1.getY();
+			final double z = d1.getZ();
+			final long cx0 = cell( x - range );
+			final long cx1 = cell( x + range );
+			final long cy0 = cell( y - range );
+			final long cy1 = cell( y + range );
+			final long cz0 = cell( z - range );
+			final long cz1 = cell( z + range );
+			for ( long cx = cx0; cx <= cx1; cx++ )
+			{
+				for ( long cy = cy0; cy <= cy1; cy++ )
+				{
+					for ( long cz = cz0; cz <= cz1; cz++ )
+					{
+						final int[] entries = cells.get( Long.valueOf( key( t, cx, cy, cz ) ) );
+						if ( entries == null )
+							continue;
+
+						for ( final int e : entries )
+						{
+							final int track = entryTrack[ e ];
+							if ( found[ track ] || entryT[ e ] != t )
+								continue;
+
+							// Same expression as in TrackToTrackDistance.
+							final double ed = Math.sqrt( ( x - entryX[ e ] ) * ( x - entryX[ e ] ) + ( y - entryY[ e ] ) * ( y - entryY[ e ] ) + ( z - entryZ[ e ] ) * ( z - entryZ[ e ] ) );
+							if ( ed < maxDist )
+							{
+								found[ track ] = true;
+								nFound++;
+							}
+						}
+					}
+				}
+			}
+		}
+
+		final int[] out = new int[ nFound ];
+		int k = 0;
+		for ( int i = 0; i < nCandidates && k < nFound; i++ )
+			if ( found[ i ] )
+				out[ k++ ] = i;
+		return out;
+	}
+
+	private long cell( final double v )
+	{
+		return ( long ) Math.floor( v / cellSize );
+	}
+
+	/**
+	 * Hashes a frame and cell position in a single key. Collisions are
+	 * possible, but only make the query inspect more entries.
+	 */
+	private static final long key( final int t, final long cx, final long cy, final long cz )
+	{
+		long h = t;
+		h = h * 0x9E3779B97F4A7C15l + cx;
+		h = h * 0x9E3779B97F4A7C15l + cy;
+		h = h * 0x9E3779B97F4A7C15l + cz;
+		return h;
+	}
+}
@@ -0,0 +1,505 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import fiji.plugin.trackmate.helper.spt.measure.TrackSegment.Frames;
+
+/**
+ * Computes the mean square displacement (MSD) of a set of tracks, for all
+ * time lags up to a maximal lag.
+ * <p>
+ * The positions of each track are copied in contiguous arrays indexed by
+ * frame. The displacements of the short lags are summed directly. For the
+ * longer lags, the sum of square displacements is obtained from the
+ * autocorrelation of the positions, computed with a FFT, and from
+ * cumulative sums of the square positions:
+ * 
+ * <pre>
+ * sum_t |r(t+k) - r(t)|^2 = sum_t ( |r(t)|^2 + |r(t+k)|^2 ) - 2 sum_t r(t).r(t+k)
+ * </pre>
+ * 
+ * For tracks with missing frames, the positions are set to 0 in the missing
+ * frames, and a mask <code>m</code> is 1 in the frames present and 0
+ * elsewhere. The number of displacements at each lag is then the
+ * autocorrelation of <code>m</code>, and the sums of square positions are
+ * the cross-correlations of <code>m</code> with <code>|r|^2</code>, all
+ * computed with FFTs too.
+ * 
+ * The short lags are summed directly because this difference loses
+ * precision when the displacements are small compared to the extent of the
+ * track. Positions are centered on the track mean before the FFT for the
+ * same reason.
+ * <p>
+ * Tracks are processed in parallel, in chunks whose boundaries do not
+ * depend on the number of threads, and the chunks are summed in order, so
+ * the results do not depend on the number of threads.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+final class MeanSquareDisplacements
+{
+
+	/**
+	 * Lags up to this value are always summed directly.
+	 */
+	private static final int DIRECT_LAGS = 32;
+
+	/**
+	 * Approximate number of detections processed by one task.
+	 */
+	private static final int CHUNK_SIZE = 1 << 15;
+
+	/**
+	 * Cosine and sine tables of the FFT, per size.
+	 */
+	private static final Map< Integer, double[][] > TWIDDLES = new ConcurrentHashMap<>();
+
+	private MeanSquareDisplacements()
+	{}
+
+	/**
+	 * Returns the MSD of the specified tracks. Element <code>k - 1</code> of
+	 * the returned array is the MSD for a lag of <code>k</code> frames,
+	 * averaged over all the pairs of detections of all the tracks separated
+	 * by <code>k</code> frames.
+	 * 
+	 * @param tracks
+	 *            the tracks.
+	 * @param maxLag
+	 *            the maximal lag to compute, in frames.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return a new array, of length the smallest of <code>maxLag</code> and
+	 *         the largest track duration minus one.
+	 */
+	static double[] compute( final List< TrackSegment > tracks, final int maxLag, final int numThreads )
+	{
+		int maxTGap = 0;
+		for ( final TrackSegment ts : tracks )
+		{
+			final int trackLength = ( ts.getLastDetection().getT() - ts.getFirstDetection().getT() ) + 1;
+			if ( trackLength - 1 > maxTGap )
+				maxTGap = trackLength - 1;
+		}
+		final int nLags = Math.max( 0, Math.min( maxTGap, maxLag ) );
+
+		final List< Callable< Partial > > chunks = new ArrayList<>();
+		int start = 0;
+		long size = 0;
+		for ( int i = 0; i < tracks.size(); i++ )
+		{
+			size += tracks.get( i ).getDetectionList().size();
+			if ( size >= CHUNK_SIZE || i == tracks.size() - 1 )
+			{
+				final int from = start;
+				final int to = i + 1;
+				chunks.add( () -> accumulate( tracks.subList( from, to ), nLags ) );
+				start = to;
+				size = 0;
+			}
+		}
+
+		final double[] msds = new double[ nLags ];
+		final long[] numJumps = new long[ nLags ];
+		try
+		{
+			if ( numThreads <= 1 || chunks.size() < 2 )
+			{
+				for ( final Callable< Partial > chunk : chunks )
+					chunk.call().addTo( msds, numJumps );
+			}
+			else
+			{
+				final ForkJoinPool pool = new ForkJoinPool( Math.min( numThreads, chunks.size() ) );
+				try
+				{
+					for ( final Future< Partial > future : pool.invokeAll( chunks ) )
+						future.get().addTo( msds, numJumps );
+				}
+				finally
+				{
+					pool.shutdown();
+				}
+			}
+		}
+		catch ( final ExecutionException e )
+		{
+			final Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			throw new RuntimeException( cause );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( e );
+		}
+
+		for ( int k = 0; k < msds.length; k++ )
+		{
+			if ( numJumps[ k ] > 0 )
+				msds[ k ] /= numJumps[ k ];
+		}
+		return msds;
+	}
+
+	/**
+	 * Sums of square displacements and number of displacements per lag, for
+	 * a chunk of tracks.
+	 */
+	private static final class Partial
+	{
+
+		private final double[] sums;
+
+		private final long[] counts;
+
+		private Partial( final int nLags )
+		{
+			this.sums = new double[ nLags ];
+			this.counts = new long[ nLags ];
+		}
+
+		private void addTo( final double[] msds, final long[] numJumps )
+		{
+			for ( int k = 0; k < sums.length; k++ )
+			{
+				msds[ k ] += sums[ k ];
+				numJumps[ k ] += counts[ k ];
+			}
+		}
+	}
+
+	private static Partial accumulate( final List< TrackSegment > tracks, final int nLags )
+	{
+		final Partial partial = new Partial( nLags );
+		for ( final TrackSegment ts : tracks )
+			accumulate( ts, nLags, partial );
+		return partial;
+	}
+
+	private static void accumulate( final TrackSegment ts, final int nLags, final Partial partial )
+	{
+		final int firstT = ts.getFirstDetection().getT();
+		final int lastT = ts.getLastDetection().getT();
+		final int span = lastT - firstT + 1;
+		final int nk = Math.min( span - 1, nLags );
+		if ( nk < 1 )
+			return;
+
+		// Copy positions in contiguous arrays indexed by frame.
+		final Frames f = ts.frames();
+		final double[] x = new double[ span ];
+		final double[] y = new double[ span ];
+		final double[] z = new double[ span ];
+		final boolean[] present = new boolean[ span ];
+		boolean gaps = false;
+		for ( int t = 0; t < span; t++ )
+		{
+			final int i = f.index( firstT + t );
+			if ( i < 0 )
+			{
+				gaps = true;
+				continue;
+			}
+			present[ t ] = true;
+			x[ t ] = f.x[ i ];
+			y[ t ] = f.y[ i ];
+			z[ t ] = f.z[ i ];
+		}
+
+		final int nDirect = Math.min( nk, DIRECT_LAGS );
+		for ( int k = 1; k <= nDirect; k++ )
+		{
+			double sum = 0;
+			long count = 0;
+			for ( int t = 0; t < span - k; t++ )
+			{
+				if ( gaps && !( present[ t ] && present[ t + k ] ) )
+					continue;
+				final double dx = x[ t ] - x[ t + k ];
+				final double dy = y[ t ] - y[ t + k ];
+				final double dz = z[ t ] - z[ t + k ];
+				sum += dx * dx + dy * dy + dz * dz;
+				count++;
+			}
+			partial.sums[ k - 1 ] += sum;
+			partial.counts[ k - 1 ] += count;
+		}
+
+		if ( nDirect < nk )
+		{
+			if ( gaps )
+				accumulateMaskedFFT( x, y, z, present, nDirect + 1, nk, partial );
+			else
+				accumulateFFT( x, y, z, nDirect + 1, nk, partial );
+		}
+	}
+
+	/**
+	 * Adds the sums of square displacements for lags <code>k0</code> to
+	 * <code>k1</code> of a track with no missing frame, computed from the
+	 * autocorrelation of its positions.
+	 */
+	private static void accumulateFFT( final double[] x, final double[] y, final double[] z, final int k0, final int k1, final Partial partial )
+	{
+		final int span = x.length;
+		double mx = 0;
+		double my = 0;
+		double mz = 0;
+		for ( int t = 0; t < span; t++ )
+		{
+			mx += x[ t ];
+			my += y[ t ];
+			mz += z[ t ];
+		}
+		mx /= span;
+		my /= span;
+		mz /= span;
+
+		// Zero-padding to at least twice the length gives the linear correlation.
+		int n = 1;
+		while ( n < 2 * span )
+			n <<= 1;
+
+		// Pack x and y in one complex transform, z in another.
+		final double[] re1 = new double[ n ];
+		final double[] im1 = new double[ n ];
+		final double[] re2 = new double[ n ];
+		final double[] im2 = new double[ n ];
+		final double[] q = new double[ span ];
+		for ( int t = 0; t < span; t++ )
+		{
+			final double cx = x[ t ] - mx;
+			final double cy = y[ t ] - my;
+			final double cz = z[ t ] - mz;
+			re1[ t ] = cx;
+			im1[ t ] = cy;
+			re2[ t ] = cz;
+			q[ t ] = cx * cx + cy * cy + cz * cz;
+		}
+		fft( re1, im1, false );
+		fft( re2, im2, false );
+
+		// Power spectrum: |X|^2 + |Y|^2 = ( |P(j)|^2 + |P(n-j)|^2 ) / 2.
+		for ( int j = 0; j < n; j++ )
+		{
+			final int jm = ( n - j ) & ( n - 1 );
+			final double p1 = re1[ j ] * re1[ j ] + im1[ j ] * im1[ j ];
+			final double p2 = re1[ jm ] * re1[ jm ] + im1[ jm ] * im1[ jm ];
+			re2[ j ] = 0.5 * ( p1 + p2 ) + re2[ j ] * re2[ j ] + im2[ j ] * im2[ j ];
+		}
+		for ( int j = 0; j < n; j++ )
+		{
+			re1[ j ] = re2[ j ];
+			im1[ j ] = 0;
+		}
+		fft( re1, im1, true );
+
+		// Sum of square positions over the frames involved at each lag.
+		double total = 0;
+		for ( int t = 0; t < span; t++ )
+			total += q[ t ];
+		double head = 0;
+		double tail = 0;
+		for ( int k = 1; k < k0; k++ )
+		{
+			head += q[ k - 1 ];
+			tail += q[ span - k ];
+		}
+		for ( int k = k0; k <= k1; k++ )
+		{
+			head += q[ k - 1 ];
+			tail += q[ span - k ];
+			final double autocorrelation = re1[ k ] / n;
+			final double sum = ( total - head ) + ( total - tail ) - 2. * autocorrelation;
+			partial.sums[ k - 1 ] += Math.max( 0., sum );
+			partial.counts[ k - 1 ] += span - k;
+		}
+	}
+
+	/**
+	 * Adds the sums and the numbers of square displacements for lags
+	 * <code>k0</code> to <code>k1</code> of a track with missing frames,
+	 * computed from the correlations of its masked positions. The positions
+	 * in the missing frames must be 0.
+	 */
+	private static void accumulateMaskedFFT( final double[] x, final double[] y, final double[] z, final boolean[] present, final int k0, final int k1, final Partial partial )
+	{
+		final int span = x.length;
+		double mx = 0;
+		double my = 0;
+		double mz = 0;
+		int np = 0;
+		for ( int t = 0; t < span; t++ )
+		{
+			if ( !present[ t ] )
+				continue;
+			mx += x[ t ];
+			my += y[ t ];
+			mz += z[ t ];
+			np++;
+		}
+		mx /= np;
+		my /= np;
+		mz /= np;
+
+		int n = 1;
+		while ( n < 2 * span )
+			n <<= 1;
+
+		// Pack x and y in one complex transform, z and the mask in another.
+		final double[] re1 = new double[ n ];
+		final double[] im1 = new double[ n ];
+		final double[] re2 = new double[ n ];
+		final double[] im2 = new double[ n ];
+		final double[] re3 = new double[ n ];
+		final double[] im3 = new double[ n ];
+		for ( int t = 0; t < span; t++ )
+		{
+			if ( !present[ t ] )
+				continue;
+			final double cx = x[ t ] - mx;
+			final double cy = y[ t ] - my;
+			final double cz = z[ t ] - mz;
+			re1[ t ] = cx;
+			im1[ t ] = cy;
+			re2[ t ] = cz;
+			im2[ t ] = 1.;
+			re3[ t ] = cx * cx + cy * cy + cz * cz;
+		}
+		fft( re1, im1, false );
+		fft( re2, im2, false );
+		fft( re3, im3, false );
+
+		/*
+		 * Spectrum of the sums in the real part, of the counts in the
+		 * imaginary part. Both are real in time.
+		 */
+		final double[] sre = new double[ n ];
+		final double[] sim = new double[ n ];
+		for ( int j = 0; j < n; j++ )
+		{
+			final int jm = ( n - j ) & ( n - 1 );
+			final double p1 = re1[ j ] * re1[ j ] + im1[ j ] * im1[ j ];
+			final double p2 = re1[ jm ] * re1[ jm ] + im1[ jm ] * im1[ jm ];
+			// Z = ( P(j) + conj( P(n-j) ) ) / 2, M = ( P(j) - conj( P(n-j) ) ) / 2i.
+			final double zr = 0.5 * ( re2[ j ] + re2[ jm ] );
+			final double zi = 0.5 * ( im2[ j ] - im2[ jm ] );
+			final double mr = 0.5 * ( im2[ j ] + im2[ jm ] );
+			final double mi = -0.5 * ( re2[ j ] - re2[ jm ] );
+			final double power = 0.5 * ( p1 + p2 ) + zr * zr + zi * zi;
+			// conj(M).Q + conj(Q).M = 2 Re( conj(M).Q ).
+			final double cross = 2. * ( mr * re3[ j ] + mi * im3[ j ] );
+			sre[ j ] = cross - 2. * power;
+			sim[ j ] = mr * mr + mi * mi;
+		}
+		fft( sre, sim, true );
+
+		for ( int k = k0; k <= k1; k++ )
+		{
+			final long count = Math.round( sim[ k ] / n );
+			if ( count <= 0 )
+				continue;
+			partial.sums[ k - 1 ] += Math.max( 0., sre[ k ] / n );
+			partial.counts[ k - 1 ] += count;
+		}
+	}
+
+	/**
+	 * In-place radix-2 complex FFT. The length of the arrays must be a power
+	 * of 2. The inverse transform is not scaled.
+	 */
+	private static void fft( final double[] re, final double[] im, final boolean inverse )
+	{
+		final int n = re.length;
+		for ( int i = 1, j = 0; i < n; i++ )
+		{
+			int bit = n >> 1;
+			for ( ; ( j & bit ) != 0; bit >>= 1 )
+				j ^= bit;
+			j ^= bit;
+			if ( i < j )
+			{
+				final double tr = re[ i ];
+				re[ i ] = re[ j ];
+				re[ j ] = tr;
+				final double ti = im[ i ];
+				im[ i ] = im[ j ];
+				im[ j ] = ti;
+			}
+		}
+
+		final double[][] twiddles = twiddles( n );
+		final double[] cos = twiddles[ 0 ];
+		final double[] sin = twiddles[ 1 ];
+		final double sign = inverse ? 1. : -1.;
+		for ( int len = 2; len <= n; len <<= 1 )
+		{
+			final int half = len >> 1;
+			final int step = n / len;
+			for ( int i = 0; i < n; i += len )
+			{
+				for ( int k = 0; k < half; k++ )
+				{
+					final double wr = cos[ k * step ];
+					final double wi = sign * sin[ k * step ];
+					final int a = i + k;
+					final int b = a + half;
+					final double br = re[ b ] * wr - im[ b ] * wi;
+					final double bi = re[ b ] * wi + im[ b ] * wr;
+					re[ b ] = re[ a ] - br;
+					im[ b ] = im[ a ] - bi;
+					re[ a ] += br;
+					im[ a ] += bi;
+				}
+			}
+		}
+	}
+
+	private static double[][] twiddles( final int n )
+	{
+		return TWIDDLES.computeIfAbsent( Integer.valueOf( n ), k -> {
+			final double[] cos = new double[ n / 2 ];
+			final double[] sin = new double[ n / 2 ];
+			for ( int j = 0; j < n / 2; j++ )
+			{
+				cos[ j ] = Math.cos( 2. * Math.PI * j / n );
+				sin[ j ] = Math.sin( 2. * Math.PI * j / n );
+			}
+			return new double[][] { cos, sin };
+		} );
+	}
+}
@@ -32,10 +32,19 @@ package fiji.plugin.trackmate.helper.spt.measure;
  * Minor modifications by Jean-Yves Tinevez, 2022.
  */
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class OneToOneMatcher
 {
@@ -46,6 +55,8 @@ public class OneToOneMatcher
 
 	private final List< List< TrackPair > > feasiblePairs;
 
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
 	/**
 	 * @param refTracks
 	 *            the set of reference tracks
@@ -79,11 +90,50 @@ public class OneToOneMatcher
 	 * @throws Exception
 	 */
 	public List< TrackPair > pairTracks( final double maxDist, final DistanceTypes distType, final boolean useNewMethod ) throws Exception
+	{
+		return pairTracks( maxDist, distType, useNewMethod ? AssignmentSolvers.HUNGARIAN_NEW : AssignmentSolvers.HUNGARIAN );
+	}
+
+	/**
+	 * Compute the best pairing
+	 * 
+	 * @param maxDist
+	 *            maximum Euclidian distance between two detections (gate)
+	 * @param distType
+	 *            type of distance that is used for computing the costs of
+	 *            association
+	 * @param solver
+	 *            the solver to use for the assignment problem of each cluster
+	 *            of track pairs.
+	 * @return the best pairing between tracks. All the reference tracks are
+	 *         paired (potentially to a dummy track), while some candidate
+	 *         tracks may not be in the list
+	 * @throws Exception
+	 */
+	public List< TrackPair > pairTracks( final double maxDist, final DistanceTypes distType, final AssignmentSolvers solver ) throws Exception
 	{
 		// build the potential track pairs
 		this.feasiblePairs.clear();
+		final CandidateTrackIndex index = ( maxDist > 0 && !Double.isInfinite( maxDist ) )
+				? new CandidateTrackIndex( candidateTracks, maxDist )
+				: null;
 		for ( final TrackSegment ts : refTracks )
-			this.feasiblePairs.add( getFeasiblePairs( ts, candidateTracks, distType, maxDist ) );
+		{
+			final List< TrackSegment > tracks2;
+			if ( index == null )
+			{
+				tracks2 = candidateTracks;
+			}
+			else
+			{
+				// only test the candidate tracks that can match
+				final int[] ids = index.query( ts );
+				tracks2 = new ArrayList<>( ids.length );
+				for ( final int id : ids )
+					tracks2.add( candidateTracks.get( id ) );
+			}
+			this.feasiblePairs.add( getFeasiblePairs( ts, tracks2, distType, maxDist ) );
+		}
 
 		// cluster track pairs
 		final List< TrackPairsCluster > clusters = new ArrayList< OneToOneMatcher.TrackPairsCluster >();
@@ -96,32 +146,103 @@ public class OneToOneMatcher
 			throw e;
 		}
 
+		final List< List< TrackPair > > clusterAssignments;
+		if ( numThreads <= 1 || clusters.size() < 2 )
+		{
+			clusterAssignments = new ArrayList<>( clusters.size() );
+			for ( final TrackPairsCluster cluster : clusters )
+				clusterAssignments.add( solve( cluster, solver ) );
+		}
+		else
+		{
+			clusterAssignments = solveParallel( clusters, solver );
+		}
+
+		// merge in the cluster order
 		final List< TrackPair > assignment = new ArrayList< TrackPair >();
-		for ( final TrackPairsCluster cluster : clusters )
+		for ( final List< TrackPair > clusterAssignment : clusterAssignments )
+			assignment.addAll( clusterAssignment );
+		return assignment;
+	}
+
+	/**
+	 * Solves the clusters concurrently on a fork-join pool, the largest
+	 * clusters first.
+	 * 
+	 * @return the assignments of each cluster, in the order of the clusters.
+	 */
+	private List< List< TrackPair > > solveParallel( final List< TrackPairsCluster > clusters, final AssignmentSolvers solver ) throws Exception
+	{
+		final List< Integer > order = new ArrayList<>( clusters.size() );
+		for ( int i = 0; i < clusters.size(); i++ )
+			order.add( Integer.valueOf( i ) );
+		order.sort( Comparator.comparingLong( ( final Integer i ) -> clusters.get( i.intValue() ).size() ).reversed() );
+
+		final List< Callable< List< TrackPair > > > tasks = new ArrayList<>( clusters.size() );
+		for ( final Integer i : order )
+			tasks.add( () -> solve( clusters.get( i.intValue() ), solver ) );
+
+		final ForkJoinPool pool = new ForkJoinPool( Math.min( numThreads, clusters.size() ) );
+		try
 		{
-			cluster.buildCostMatrix();
-			// use Munkres algorithm to find the best pairing
-			try
+			final List< Future< List< TrackPair > > > futures = pool.invokeAll( tasks );
+			final List< List< TrackPair > > clusterAssignments = new ArrayList<>( Collections.nCopies( clusters.size(), null ) );
+			for ( int k = 0; k < futures.size(); k++ )
 			{
-				boolean[][] matching;
-				if ( useNewMethod )
+				try
 				{
-					final HungarianMatchingNew matcher = new HungarianMatchingNew( cluster.costs );
-					matching = matcher.compute();
+					clusterAssignments.set( order.get( k ).intValue(), futures.get( k ).get() );
 				}
-				else
+				catch ( final ExecutionException e )
 				{
-					final HungarianMatching matcher = new HungarianMatching( cluster.costs );
-					matching = matcher.optimize();
+					if ( e.getCause() instanceof Exception )
+						throw ( Exception ) e.getCause();
+					throw e;
 				}
-				assignment.addAll( cluster.getAssignements( matching ) );
-			}
-			catch ( final Exception e )
-			{
-				throw e;
 			}
+			return clusterAssignments;
 		}
-		return assignment;
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Finds the best assignment within one cluster.
+	 */
+	private static List< TrackPair > solve( final TrackPairsCluster cluster, final AssignmentSolvers solver ) throws Exception
+	{
+		if ( solver == AssignmentSolvers.SPARSE )
+			return cluster.solveSparse();
+
+		cluster.buildCostMatrix();
+		// use Munkres algorithm to find the best pairing
+		boolean[][] matching;
+		if ( solver == AssignmentSolvers.HUNGARIAN_NEW )
+		{
+			final HungarianMatchingNew matcher = new HungarianMatchingNew( cluster.costs );
+			matching = matcher.compute();
+		}
+		else
+		{
+			final HungarianMatching matcher = new HungarianMatching( cluster.costs );
+			matching = matcher.optimize();
+		}
+		return cluster.getAssignements( matching );
+	}
+
+	/**
+	 * Sets the number of threads used to solve the clusters of track pairs
+	 * concurrently.
+	 * 
+	 * @param numThreads
+	 *            the number of threads. If 1, the clusters are solved one
+	 *            after the other, in the calling thread.
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
 	}
 
 	public List< TrackPair > pairTracks( final double maxDist, final DistanceTypes distType ) throws Exception
@@ -131,68 +252,128 @@ public class OneToOneMatcher
 
 	/**
 	 * Build the clusters of TrackPair objects
+	 * <p>
+	 * Clusters are the connected components of the graph linking reference
+	 * tracks to the candidate tracks they can be paired with. They are found
+	 * with a disjoint-set forest over the reference tracks, in near-linear
+	 * time. The clusters and their content are returned in the same order as
+	 * when reference tracks were merged one after the other in the list of
+	 * clusters: the cluster that received the last reference track first.
 	 * 
 	 * @return list of TrackPairsCluster for the current set of TrackPairs
 	 */
 	private List< TrackPairsCluster > getTrackPairClusters() throws Exception
 	{
-		List< TrackPairsCluster > clusters = new ArrayList< TrackPairsCluster >();
-		for ( final List< TrackPair > trackPairsList : feasiblePairs )
+		final int nRefs = feasiblePairs.size();
+		final int[] parent = new int[ nRefs ];
+		final int[] rank = new int[ nRefs ];
+		// the last reference track added to the cluster of each root
+		final int[] latest = new int[ nRefs ];
+		// the clusters merged when adding each reference track, last first
+		final int[][] merged = new int[ nRefs ][];
+		// a reference track using each candidate track
+		final Map< TrackSegment, Integer > candidateOwners = new HashMap<>();
+
+		final List< Integer > toMerge = new ArrayList<>();
+		final int[] mergeStamp = new int[ nRefs ];
+		for ( int k = 0; k < nRefs; k++ )
 		{
-			if ( !trackPairsList.isEmpty() )
+			final List< TrackPair > trackPairsList = feasiblePairs.get( k );
+			if ( trackPairsList.isEmpty() )
+				throw new Exception( "There is a track cluster empty" );
+
+			parent[ k ] = k;
+			latest[ k ] = k;
+			toMerge.clear();
+			for ( final TrackPair tp : trackPairsList )
 			{
-				/*
-				 * create a cluster with tracks corresponding to the current
-				 * reference track
-				 */
-				final TrackPairsCluster currentCluster = new TrackPairsCluster();
-				final TrackSegment refTrack = trackPairsList.get( 0 ).referenceTrack;
-				currentCluster.usedReferenceTracks.add( refTrack );
-				for ( final TrackPair tp : trackPairsList )
-					currentCluster.usedCandidateTracks.add( tp.candidateTrack );
-				currentCluster.trackPairs.addAll( trackPairsList );
-				// now try to merge this cluster with others
-				final ArrayList< TrackPairsCluster > clustersCopy = new ArrayList< TrackPairsCluster >();
-				clustersCopy.add( currentCluster );
-				for ( final TrackPairsCluster cluster : clusters )
+				final Integer owner = candidateOwners.putIfAbsent( tp.candidateTrack, Integer.valueOf( k ) );
+				if ( owner == null )
+					continue;
+
+				final int cluster = latest[ find( parent, owner.intValue() ) ];
+				if ( cluster != k && mergeStamp[ cluster ] != k + 1 )
 				{
-					/*
-					 * check if cluster contains tracks that are used by the
-					 * current cluster we do not check for the reference track
-					 * as it should not be used elsewhere
-					 */
-					boolean found = false;
-					for ( final TrackPair tp : trackPairsList )
-					{
-						found = cluster.usedCandidateTracks.contains( tp.candidateTrack );
-						if ( found )
-							break;
-					}
-					if ( found )
-					{
-						// merge clusters
-						currentCluster.mergeCluster( cluster );
-					}
-					else
-					{
-						// keep the investigate cluster intact
-						clustersCopy.add( cluster );
-					}
+					mergeStamp[ cluster ] = k + 1;
+					toMerge.add( Integer.valueOf( cluster ) );
 				}
-				clusters = clustersCopy;
 			}
-			else
+			toMerge.sort( Collections.reverseOrder() );
+
+			merged[ k ] = new int[ toMerge.size() ];
+			int root = k;
+			for ( int m = 0; m < merged[ k ].length; m++ )
 			{
-				throw new Exception( "There is a track cluster empty" );
+				merged[ k ][ m ] = toMerge.get( m ).intValue();
+				root = union( parent, rank, root, merged[ k ][ m ] );
 			}
+			latest[ root ] = k;
+		}
+
+		// one cluster per root, the cluster of the last reference track first
+		final List< TrackPairsCluster > clusters = new ArrayList< TrackPairsCluster >();
+		final boolean[] isClusterTop = new boolean[ nRefs ];
+		for ( int k = 0; k < nRefs; k++ )
+			if ( parent[ k ] == k )
+				isClusterTop[ latest[ k ] ] = true;
+
+		final Deque< Integer > stack = new ArrayDeque<>();
+		for ( int k = nRefs - 1; k >= 0; k-- )
+		{
+			if ( !isClusterTop[ k ] )
+				continue;
+
+			final TrackPairsCluster cluster = new TrackPairsCluster();
+			stack.push( Integer.valueOf( k ) );
+			while ( !stack.isEmpty() )
+			{
+				final int r = stack.pop().intValue();
+				cluster.addReferenceTrack( feasiblePairs.get( r ) );
+				for ( int m = merged[ r ].length - 1; m >= 0; m-- )
+					stack.push( Integer.valueOf( merged[ r ][ m ] ) );
+			}
+			clusters.add( cluster );
 		}
 		return clusters;
 	}
 
+	private static final int find( final int[] parent, int i )
+	{
+		while ( parent[ i ] != i )
+		{
+			parent[ i ] = parent[ parent[ i ] ];
+			i = parent[ i ];
+		}
+		return i;
+	}
+
+	private static final int union( final int[] parent, final int[] rank, final int a, final int b )
+	{
+		final int ra = find( parent, a );
+		final int rb = find( parent, b );
+		if ( ra == rb )
+			return ra;
+		if ( rank[ ra ] < rank[ rb ] )
+		{
+			parent[ ra ] = rb;
+			return rb;
+		}
+		parent[ rb ] = ra;
+		if ( rank[ ra ] == rank[ rb ] )
+			rank[ ra ]++;
+		return ra;
+	}
+
 	/**
 	 * Compute the set of feasible pairs between a reference track and candidate
 	 * and dummy tracks. A pair is not feasible if it does not bring improvement
 	 * over the association of the reference track with a dummy track.
+	 * <p>
+	 * Pairs whose distance is strictly larger than the distance to the dummy
+	 * track are not included: the reference track can always be associated
+	 * to its own dummy track instead, at a lower cost, so they never are in
+	 * an optimal pairing. Their distance computation is stopped as soon as
+	 * it exceeds this bound.
 	 * 
 	 * @param ts
 	 *            the reference TrackSegment object
@@ -210,10 +391,25 @@ public class OneToOneMatcher
 			final DistanceTypes distType,
 			final double maxDist )
 	{
+		final TrackToTrackDistance distance = new TrackToTrackDistance();
+
+		// distance to a dummy track, representing no association
+		final TrackSegment dummyTrack = new TrackSegment();
+		TrackToTrackDistance.compute( ts, dummyTrack, distType, maxDist, Double.POSITIVE_INFINITY, distance );
+		final TrackPair dummyPair = new TrackPair(
+				ts,
+				dummyTrack,
+				distance.distance,
+				distance.firstMatchingTime,
+				distance.lastMatchingTime );
+		final double bound = distance.distance;
+
 		final ArrayList< TrackPair > feasiblePairs = new ArrayList< TrackPair >();
 		for ( final TrackSegment ts2 : tracks2 )
 		{
-			final TrackToTrackDistance distance = new TrackToTrackDistance( ts, ts2, distType, maxDist );
+			if ( !TrackToTrackDistance.compute( ts, ts2, distType, maxDist, bound, distance ) )
+				continue;
+
 			if ( distance.isMatching )
 			{
 				final TrackPair pair = new TrackPair(
@@ -225,41 +421,66 @@ public class OneToOneMatcher
 				feasiblePairs.add( pair );
 			}
 		}
-		// add a dummy track for representing no association
-		final TrackSegment dummyTrack = new TrackSegment();
-		final TrackToTrackDistance distance = new TrackToTrackDistance( ts, dummyTrack, distType, maxDist );
-		final TrackPair pair = new TrackPair(
-				ts,
-				new TrackSegment(),
-				distance.distance,
-				distance.firstMatchingTime,
-				distance.lastMatchingTime );
-		feasiblePairs.add( pair );
+		feasiblePairs.add( dummyPair );
 		return feasiblePairs;
 	}
 
 	/**
 	 * cluster of TrackPair objects that share common tracks
+	 * <p>
+	 * The track pairs of a reference track are stored contiguously, and the
+	 * reference and candidate tracks are indexed as they are added.
 	 */
-	private class TrackPairsCluster
+	private static class TrackPairsCluster
 	{
-		private final Set< TrackSegment > usedReferenceTracks = new HashSet< TrackSegment >();
+		private final List< TrackPair > trackPairs = new ArrayList< TrackPair >();
 
-		private final Set< TrackSegment > usedCandidateTracks = new HashSet< TrackSegment >();
+		/**
+		 * Index of the first track pair of each reference track in
+		 * {@link #trackPairs}, plus the total number of track pairs.
+		 */
+		private int[] rowStart = new int[] { 0 };
 
-		private final List< TrackPair > trackPairs = new ArrayList< TrackPair >();
+		private final List< TrackSegment > candidateTrackList = new ArrayList< TrackSegment >();
 
-		private double[][] costs;
+		private final Map< TrackSegment, Integer > candidateIndices = new HashMap<>();
+
+		private int nReferenceTracks = 0;
 
-		private List< TrackSegment > candidateTrackList;
+		private double[][] costs;
 
-		private List< TrackSegment > referenceTrackList;
+		/**
+		 * Returns the size of the dense cost matrix of this cluster, used to
+		 * schedule the largest clusters first.
+		 */
+		private long size()
+		{
+			return ( long ) nReferenceTracks * candidateTrackList.size();
+		}
 
-		public void mergeCluster( final TrackPairsCluster toMerge )
+		/**
+		 * Adds the feasible track pairs of a reference track to this
+		 * cluster.
+		 */
+		private void addReferenceTrack( final List< TrackPair > pairs )
 		{
-			this.usedCandidateTracks.addAll( toMerge.usedCandidateTracks );
-			this.usedReferenceTracks.addAll( toMerge.usedReferenceTracks );
-			this.trackPairs.addAll( toMerge.trackPairs );
+			final int referenceIndex = nReferenceTracks++;
+			for ( final TrackPair tp : pairs )
+			{
+				Integer candidateIndex = candidateIndices.get( tp.candidateTrack );
+				if ( candidateIndex == null )
+				{
+					candidateIndex = Integer.valueOf( candidateTrackList.size() );
+					candidateIndices.put( tp.candidateTrack, candidateIndex );
+					candidateTrackList.add( tp.candidateTrack );
+				}
+				tp.referenceIndex = referenceIndex;
+				tp.candidateIndex = candidateIndex.intValue();
+				trackPairs.add( tp );
+			}
+			if ( rowStart.length <= nReferenceTracks )
+				rowStart = Arrays.copyOf( rowStart, Math.max( 2 * rowStart.length, nReferenceTracks + 1 ) );
+			rowStart[ nReferenceTracks ] = trackPairs.size();
 		}
 
 		/**
@@ -272,11 +493,7 @@ public class OneToOneMatcher
 			for ( final TrackPair tp : this.trackPairs )
 				maxDist = Math.max( maxDist, tp.distance );
 
-			candidateTrackList = new ArrayList< TrackSegment >();
-			candidateTrackList.addAll( usedCandidateTracks );
-			referenceTrackList = new ArrayList< TrackSegment >();
-			referenceTrackList.addAll( usedReferenceTracks );
-			costs = new double[ referenceTrackList.size() ][ candidateTrackList.size() ];
+			costs = new double[ nReferenceTracks ][ candidateTrackList.size() ];
 
 			// fill costs
 			for ( int i = 0; i < costs.length; i++ )
@@ -284,11 +501,37 @@ public class OneToOneMatcher
 					costs[ i ][ j ] = maxDist + 1;
 
 			for ( final TrackPair tp : this.trackPairs )
-			{
-				tp.referenceIndex = referenceTrackList.indexOf( tp.referenceTrack );
-				tp.candidateIndex = candidateTrackList.indexOf( tp.candidateTrack );
 				costs[ tp.referenceIndex ][ tp.candidateIndex ] = tp.distance;
+		}
+
+		/**
+		 * Find the best assignment between reference and candidate tracks of
+		 * a TrackPairsCluster object, using only the feasible track pairs.
+		 * 
+		 * @return the list of TrackPair objects that correspond to the
+		 *         matching, in the order of the reference tracks
+		 */
+		private List< TrackPair > solveSparse() throws Exception
+		{
+			// CSR storage of the costs, one row per reference track
+			final int nPairs = trackPairs.size();
+			final int[] cols = new int[ nPairs ];
+			final double[] entryCosts = new double[ nPairs ];
+			for ( int e = 0; e < nPairs; e++ )
+			{
+				final TrackPair tp = trackPairs.get( e );
+				cols[ e ] = tp.candidateIndex;
+				entryCosts[ e ] = tp.distance;
 			}
+
+			final SparseLAPMatching matcher = new SparseLAPMatching( nReferenceTracks, candidateTrackList.size(),
+					Arrays.copyOf( rowStart, nReferenceTracks + 1 ), cols, entryCosts );
+			final int[] rowCol = matcher.compute();
+
+			final List< TrackPair > assignment = new ArrayList< TrackPair >( nReferenceTracks );
+			for ( int referenceIndex = 0; referenceIndex < nReferenceTracks; referenceIndex++ )
+				assignment.add( getPair( referenceIndex, rowCol[ referenceIndex ] ) );
+			return assignment;
 		}
 
 		/**
@@ -303,7 +546,7 @@ public class OneToOneMatcher
 		private List< TrackPair > getAssignements( final boolean[][] matching ) throws Exception
 		{
 			final List< TrackPair > assignment = new ArrayList< TrackPair >();
-			for ( int referenceIndex = 0; referenceIndex < referenceTrackList.size(); referenceIndex++ )
+			for ( int referenceIndex = 0; referenceIndex < nReferenceTracks; referenceIndex++ )
 			{
 				boolean found = false;
 				int candidateIndex = -1;
@@ -318,20 +561,24 @@ public class OneToOneMatcher
 				}
 				if ( !found )
 					throw new Exception( "No match found when building assignment" );
-				found = false;
-				for ( final TrackPair tp : trackPairs )
-				{
-					if ( tp.candidateIndex == candidateIndex && tp.referenceIndex == referenceIndex )
-					{
-						assignment.add( tp );
-						found = true;
-						break;
-					}
-				}
-				if ( !found )
-					throw new Exception( "Track pair not found when building assignment" );
+				assignment.add( getPair( referenceIndex, candidateIndex ) );
 			}
 			return assignment;
 		}
+
+		/**
+		 * Returns the track pair between the specified reference and candidate
+		 * tracks, looking only in the track pairs of the reference track.
+		 */
+		private TrackPair getPair( final int referenceIndex, final int candidateIndex ) throws Exception
+		{
+			for ( int e = rowStart[ referenceIndex ]; e < rowStart[ referenceIndex + 1 ]; e++ )
+			{
+				final TrackPair tp = trackPairs.get( e );
+				if ( tp.candidateIndex == candidateIndex )
+					return tp;
+			}
+			throw new Exception( "Track pair not found when building assignment" );
+		}
 	}
 }
@@ -22,7 +22,13 @@
 package fiji.plugin.trackmate.helper.spt.measure;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.helper.spt.measure.TrackSegment.Frames;
 
 /**
  * Utilities to compute several tracking performance criteria for a given
@@ -43,6 +49,24 @@ public class PerformanceAnalyzer
 
 	private final List< TrackPair > trackPairs;
 
+	/**
+	 * The distances of each track pair, computed once per distance type and
+	 * gate, in the order of the track pairs.
+	 */
+	private final Map< DistanceTypes, Map< Double, TrackToTrackDistance[] > > pairDistances = new EnumMap<>( DistanceTypes.class );
+
+	/**
+	 * Index of the first track pair each candidate track belongs to.
+	 */
+	private Map< TrackSegment, Integer > candidatePairIndex;
+
+	/**
+	 * Index of the first track pair each reference track belongs to.
+	 */
+	private Map< TrackSegment, Integer > referencePairIndex;
+
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
 	/**
 	 * Build the analyzer
 	 * 
@@ -67,6 +91,17 @@ public class PerformanceAnalyzer
 		this.trackPairs.addAll( trackPairs );
 	}
 
+	/**
+	 * Sets the number of threads used to compute the MSDs.
+	 * 
+	 * @param numThreads
+	 *            the number of threads.
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
 	/**
 	 * @return the number of reference tracks
 	 */
@@ -112,15 +147,8 @@ public class PerformanceAnalyzer
 	public double getPairedTracksDistance( final DistanceTypes distType, final double maxDist )
 	{
 		double distance = 0;
-		for ( final TrackPair tp : trackPairs )
-		{
-			final TrackToTrackDistance d = new TrackToTrackDistance(
-					tp.referenceTrack,
-					tp.candidateTrack,
-					distType,
-					maxDist );
+		for ( final TrackToTrackDistance d : getPairDistances( distType, maxDist ) )
 			distance += d.distance;
-		}
 		return distance;
 	}
 
@@ -130,19 +158,17 @@ public class PerformanceAnalyzer
 	public double getPairedTracksNormalizedDistance( final DistanceTypes distType, final double maxDist )
 	{
 		double distance = 0;
-		for ( final TrackPair tp : trackPairs )
-		{
-			final TrackToTrackDistance d = new TrackToTrackDistance( tp.referenceTrack, tp.candidateTrack, distType, maxDist );
+		for ( final TrackToTrackDistance d : getPairDistances( distType, maxDist ) )
 			distance += d.distance;
-		}
 		/*
 		 * divide now by the maximum distance that corresponds to reference
 		 * tracks with no associated tracks
 		 */
 		double normalization = 0;
+		final TrackToTrackDistance d = new TrackToTrackDistance();
 		for ( final TrackSegment ts : referenceTracks )
 		{
-			final TrackToTrackDistance d = new TrackToTrackDistance( ts, null, distType, maxDist );
+			TrackToTrackDistance.compute( ts, null, distType, maxDist, Double.POSITIVE_INFINITY, d );
 			normalization += d.distance;
 		}
 		return 1d - distance / normalization;
@@ -155,34 +181,24 @@ public class PerformanceAnalyzer
 	public double getFullTrackingScore( final DistanceTypes distType, final double maxDist )
 	{
 		double distance = 0;
-		for ( final TrackPair tp : trackPairs )
-		{
-			final TrackToTrackDistance d = new TrackToTrackDistance( tp.referenceTrack, tp.candidateTrack, distType, maxDist );
+		for ( final TrackToTrackDistance d : getPairDistances( distType, maxDist ) )
 			distance += d.distance;
-		}
 		// compute the bound on the distance
 		double bound = 0;
+		final TrackToTrackDistance d = new TrackToTrackDistance();
 		for ( final TrackSegment ts : referenceTracks )
 		{
-			final TrackToTrackDistance d = new TrackToTrackDistance( ts, null, distType, maxDist );
+			TrackToTrackDistance.compute( ts, null, distType, maxDist, Double.POSITIVE_INFINITY, d );
 			bound += d.distance;
 		}
 		// compute the penalty for wrong tracks
 		double penalty = 0;
+		final Map< TrackSegment, Integer > pairIndex = getCandidatePairIndex();
 		for ( final TrackSegment ts : candidateTracks )
 		{
-			boolean found = false;
-			for ( final TrackPair tp : trackPairs )
-			{
-				if ( tp.candidateTrack == ts )
-				{
-					found = true;
-					break;
-				}
-			}
-			if ( !found )
+			if ( !pairIndex.containsKey( ts ) )
 			{
-				final TrackToTrackDistance d = new TrackToTrackDistance( ts, null, distType, maxDist );
+				TrackToTrackDistance.compute( ts, null, distType, maxDist, Double.POSITIVE_INFINITY, d );
 				penalty += d.distance;
 			}
 		}
@@ -195,20 +211,10 @@ public class PerformanceAnalyzer
 	public int getNumSpuriousTracks()
 	{
 		int numSpuriousTracks = 0;
+		final Map< TrackSegment, Integer > pairIndex = getCandidatePairIndex();
 		for ( final TrackSegment ts : candidateTracks )
-		{
-			boolean found = false;
-			for ( final TrackPair tp : trackPairs )
-			{
-				if ( tp.candidateTrack == ts )
-				{
-					found = true;
-					break;
-				}
-			}
-			if ( !found )
+			if ( !pairIndex.containsKey( ts ) )
 				numSpuriousTracks++;
-		}
 		return numSpuriousTracks;
 	}
 
@@ -219,19 +225,17 @@ public class PerformanceAnalyzer
 	public int getNumMissedTracks()
 	{
 		int numMissedTrack = 0;
+		final Map< TrackSegment, Integer > pairIndex = getReferencePairIndex();
 		for ( final TrackSegment ts : referenceTracks )
 		{
-			boolean found = false;
-			for ( final TrackPair tp : trackPairs )
+			final Integer index = pairIndex.get( ts );
+			if ( index == null )
 			{
-				if ( tp.referenceTrack == ts )
-				{
-					if ( tp.candidateTrack != null && !tp.candidateTrack.getDetectionList().isEmpty() )
-						found = true;
-					break;
-				}
+				numMissedTrack++;
+				continue;
 			}
-			if ( !found )
+			final TrackPair tp = trackPairs.get( index.intValue() );
+			if ( tp.candidateTrack == null || tp.candidateTrack.getDetectionList().isEmpty() )
 				numMissedTrack++;
 		}
 		return numMissedTrack;
@@ -243,20 +247,10 @@ public class PerformanceAnalyzer
 	public int getNumPairedTracks()
 	{
 		int numCorrectTracks = 0;
+		final Map< TrackSegment, Integer > pairIndex = getCandidatePairIndex();
 		for ( final TrackSegment ts : candidateTracks )
-		{
-			boolean found = false;
-			for ( final TrackPair tp : trackPairs )
-			{
-				if ( tp.candidateTrack == ts )
-				{
-					found = true;
-					break;
-				}
-			}
-			if ( found )
+			if ( pairIndex.containsKey( ts ) )
 				numCorrectTracks++;
-		}
 		return numCorrectTracks;
 	}
 
@@ -266,11 +260,8 @@ public class PerformanceAnalyzer
 	public int getNumPairedDetections( final double maxDist )
 	{
 		int numRecoveredDetections = 0;
-		for ( final TrackPair tp : trackPairs )
-		{
-			final TrackToTrackDistance d = new TrackToTrackDistance( tp.referenceTrack, tp.candidateTrack, DistanceTypes.DISTANCE_MATCHING, maxDist );
+		for ( final TrackToTrackDistance d : getPairDistances( DistanceTypes.DISTANCE_MATCHING, maxDist ) )
 			numRecoveredDetections += d.numMatchingDetections;
-		}
 		return numRecoveredDetections;
 	}
 
@@ -281,11 +272,8 @@ public class PerformanceAnalyzer
 	public int getNumMissedDetections( final double maxDist )
 	{
 		int numMissedDetections = 0;
-		for ( final TrackPair tp : trackPairs )
-		{
-			final TrackToTrackDistance d = new TrackToTrackDistance( tp.referenceTrack, tp.candidateTrack, DistanceTypes.DISTANCE_MATCHING, maxDist );
+		for ( final TrackToTrackDistance d : getPairDistances( DistanceTypes.DISTANCE_MATCHING, maxDist ) )
 			numMissedDetections += d.numNonMatchedDetections;
-		}
 		return numMissedDetections;
 	}
 
@@ -296,20 +284,16 @@ public class PerformanceAnalyzer
 	public int getNumWrongDetections( final double maxDist )
 	{
 		int numSpuriousDetections = 0;
+		final TrackToTrackDistance[] distances = getPairDistances( DistanceTypes.DISTANCE_MATCHING, maxDist );
+		final Map< TrackSegment, Integer > pairIndex = getCandidatePairIndex();
 		for ( final TrackSegment ts : candidateTracks )
 		{
-			boolean found = false;
-			for ( final TrackPair tp : trackPairs )
+			final Integer index = pairIndex.get( ts );
+			if ( index != null )
 			{
-				if ( tp.candidateTrack == ts )
-				{
-					final TrackToTrackDistance d = new TrackToTrackDistance( tp.referenceTrack, tp.candidateTrack, DistanceTypes.DISTANCE_MATCHING, maxDist );
-					numSpuriousDetections += d.numWrongDetections;
-					found = true;
-					break;
-				}
+				numSpuriousDetections += distances[ index.intValue() ].numWrongDetections;
 			}
-			if ( !found )
+			else
 			{
 				for ( final Detection d : ts.getDetectionList() )
 					if ( d.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION )
@@ -320,6 +304,145 @@ public class PerformanceAnalyzer
 		return numSpuriousDetections;
 	}
 
+	/**
+	 * Computes all the ISBI scores and the counts they derive from at once.
+	 * <p>
+	 * This gives the same values as calling
+	 * {@link #getPairedTracksNormalizedDistance(DistanceTypes, double)},
+	 * {@link #getFullTrackingScore(DistanceTypes, double)},
+	 * {@link #getDistanceDetectionData(double)} and the track and detection
+	 * counts one after the other, but the distance of each track pair is
+	 * computed only once, for the specified distance type. The detection
+	 * counts do not depend on the distance type.
+	 * 
+	 * @param distType
+	 *            the distance used for alpha and beta.
+	 * @param maxDist
+	 *            the gate used for the distances between detections.
+	 * @return the scores.
+	 */
+	public PerformanceScores getScores( final DistanceTypes distType, final double maxDist )
+	{
+		final TrackToTrackDistance[] distances = getPairDistances( distType, maxDist );
+		final TrackToTrackDistance d = new TrackToTrackDistance();
+
+		// Reference tracks: normalization of alpha and beta, missed tracks.
+		double normalization = 0;
+		int numMissedTracks = 0;
+		final Map< TrackSegment, Integer > refPairIndex = getReferencePairIndex();
+		for ( final TrackSegment ts : referenceTracks )
+		{
+			TrackToTrackDistance.compute( ts, null, distType, maxDist, Double.POSITIVE_INFINITY, d );
+			normalization += d.distance;
+
+			final Integer index = refPairIndex.get( ts );
+			if ( index == null )
+			{
+				numMissedTracks++;
+				continue;
+			}
+			final TrackPair tp = trackPairs.get( index.intValue() );
+			if ( tp.candidateTrack == null || tp.candidateTrack.getDetectionList().isEmpty() )
+				numMissedTracks++;
+		}
+
+		// Track pairs: distance, detection counts and localization error.
+		double distance = 0;
+		int numPairedDetections = 0;
+		int numMissedDetections = 0;
+		double sumSquareDistance = 0;
+		int numMatchingDetections = 0;
+		for ( int i = 0; i < distances.length; i++ )
+		{
+			final TrackToTrackDistance pd = distances[ i ];
+			distance += pd.distance;
+			numPairedDetections += pd.numMatchingDetections;
+			numMissedDetections += pd.numNonMatchedDetections;
+
+			final TrackPair tp = trackPairs.get( i );
+			if ( tp.candidateTrack != null && !tp.candidateTrack.getDetectionList().isEmpty() )
+			{
+				sumSquareDistance += pd.sumSquareDetectionDistance;
+				numMatchingDetections += pd.numMatchingDetections;
+			}
+		}
+
+		// Candidate tracks: spurious tracks and detections.
+		double penalty = 0;
+		int numPairedTracks = 0;
+		int numSpuriousTracks = 0;
+		int numWrongDetections = 0;
+		final Map< TrackSegment, Integer > candidatePairIndex = getCandidatePairIndex();
+		for ( final TrackSegment ts : candidateTracks )
+		{
+			final Integer index = candidatePairIndex.get( ts );
+			if ( index != null )
+			{
+				numPairedTracks++;
+				numWrongDetections += distances[ index.intValue() ].numWrongDetections;
+			}
+			else
+			{
+				numSpuriousTracks++;
+				TrackToTrackDistance.compute( ts, null, distType, maxDist, Double.POSITIVE_INFINITY, d );
+				penalty += d.distance;
+				for ( final Detection det : ts.getDetectionList() )
+					if ( det.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION )
+						numWrongDetections++;
+				// Virtual detections are not considered as spurious detections.
+			}
+		}
+
+		final double alpha = 1d - distance / normalization;
+		final double beta = ( normalization - distance ) / ( normalization + penalty );
+		final double rmse = numMatchingDetections == 0 ? 0 : Math.sqrt( sumSquareDistance / numMatchingDetections );
+		return new PerformanceScores( alpha, beta, rmse,
+				numPairedTracks, numMissedTracks, numSpuriousTracks,
+				numPairedDetections, numMissedDetections, numWrongDetections );
+	}
+
+	/**
+	 * Returns the distance of each track pair for the specified distance type
+	 * and gate. They are computed at the first call and reused afterwards.
+	 */
+	private synchronized TrackToTrackDistance[] getPairDistances( final DistanceTypes distType, final double maxDist )
+	{
+		return pairDistances
+				.computeIfAbsent( distType, k -> new HashMap<>() )
+				.computeIfAbsent( Double.valueOf( maxDist ), k -> {
+					final TrackToTrackDistance[] distances = new TrackToTrackDistance[ trackPairs.size() ];
+					for ( int i = 0; i < distances.length; i++ )
+					{
+						final TrackPair tp = trackPairs.get( i );
+						distances[ i ] = new TrackToTrackDistance( tp.referenceTrack, tp.candidateTrack, distType, maxDist );
+					}
+					return distances;
+				} );
+	}
+
+	private synchronized Map< TrackSegment, Integer > getCandidatePairIndex()
+	{
+		if ( candidatePairIndex == null )
+		{
+			candidatePairIndex = new IdentityHashMap<>();
+			for ( int i = 0; i < trackPairs.size(); i++ )
+				if ( trackPairs.get( i ).candidateTrack != null )
+					candidatePairIndex.putIfAbsent( trackPairs.get( i ).candidateTrack, Integer.valueOf( i ) );
+		}
+		return candidatePairIndex;
+	}
+
+	private synchronized Map< TrackSegment, Integer > getReferencePairIndex()
+	{
+		if ( referencePairIndex == null )
+		{
+			referencePairIndex = new IdentityHashMap<>();
+			for ( int i = 0; i < trackPairs.size(); i++ )
+				referencePairIndex.putIfAbsent( trackPairs.get( i ).referenceTrack, Integer.valueOf( i ) );
+		}
+		return referencePairIndex;
+	}
+
 	public List< Double > getDistanceDetectionList( final double maxDist )
 	{
 		final List< Double > distanceList = new ArrayList< Double >();
@@ -337,11 +460,13 @@ public class PerformanceAnalyzer
 		double minDistance = Double.MAX_VALUE;
 		double maxDistance = 0;
 		int numDetections = 0;
-		for ( final TrackPair tp : trackPairs )
+		final TrackToTrackDistance[] distances = getPairDistances( DistanceTypes.DISTANCE_MATCHING, maxDist );
+		for ( int i = 0; i < trackPairs.size(); i++ )
 		{
+			final TrackPair tp = trackPairs.get( i );
 			if ( tp.candidateTrack != null && !tp.candidateTrack.getDetectionList().isEmpty() )
 			{
-				final TrackToTrackDistance d = new TrackToTrackDistance( tp.referenceTrack, tp.candidateTrack, DistanceTypes.DISTANCE_MATCHING, maxDist );
+				final TrackToTrackDistance d = distances[ i ];
 				sumDistance += d.sumDetectionDistance;
 				sumSquareDistance += d.sumSquareDetectionDistance;
 				if ( d.minDetectionDistance < minDistance )
@@ -384,14 +509,10 @@ public class PerformanceAnalyzer
 		{
 			final int firstT = Math.max( t0_1, t0_2 );
 			final int endT = Math.min( tend_1, tend_2 );
+			final Frames f1 = ts1.frames();
+			final Frames f2 = ts2.frames();
 			for ( int t = firstT; t <= endT; t++ )
-			{
-				final Detection d1 = ts1.getDetectionAtTime( t );
-				final Detection d2 = ts2.getDetectionAtTime( t );
-				distanceList.add( Double.valueOf( Math.sqrt( ( d1.getX() - d2.getX() ) * ( d1.getX() - d2.getX() )
-						+ ( d1.getY() - d2.getY() ) * ( d1.getY() - d2.getY() )
-						+ ( d1.getZ() - d2.getZ() ) * ( d1.getZ() - d2.getZ() ) ) ) );
-			}
+				distanceList.add( Double.valueOf( Frames.distance( f1, f1.index( t ), f2, f2.index( t ) ) ) );
 		}
 		return distanceList;
 	}
@@ -417,17 +538,16 @@ public class PerformanceAnalyzer
 		final List< Double > lengthList = new ArrayList< Double >();
 		final int firstT = ts1.getFirstDetection().getT();
 		final int lastT = ts1.getLastDetection().getT();
+		final Frames f = ts1.frames();
 
 		for ( int t = firstT; t < lastT; t++ )
 		{
-			final Detection d1 = ts1.getDetectionAtTime( t );
-			if ( d1 != null )
+			final int i1 = f.index( t );
+			if ( i1 >= 0 )
 			{
-				final Detection d2 = ts1.getDetectionAtTime( t + 1 );
-				if ( d2 != null )
-					lengthList.add( Double.valueOf( Math.sqrt( ( d1.getX() - d2.getX() ) * ( d1.getX() - d2.getX() )
-							+ ( d1.getY() - d2.getY() ) * ( d1.getY() - d2.getY() )
-							+ ( d1.getZ() - d2.getZ() ) * ( d1.getZ() - d2.getZ() ) ) ) );
+				final int i2 = f.index( t + 1 );
+				if ( i2 >= 0 )
+					lengthList.add( Double.valueOf( Frames.distance( f, i1, f, i2 ) ) );
 			}
 		}
 		return lengthList;
@@ -438,51 +558,46 @@ public class PerformanceAnalyzer
 		return getMSDs( candidateTracks );
 	}
 
+	/**
+	 * Returns the MSD of the candidate tracks for lags up to the specified
+	 * value.
+	 * 
+	 * @param maxLag
+	 *            the maximal lag, in frames.
+	 * @return the MSD for lags 1 to <code>maxLag</code>, or up to the largest
+	 *         track duration minus one if it is smaller.
+	 */
+	public double[] getCandidateTracksMSDs( final int maxLag )
+	{
+		return getMSDs( candidateTracks, maxLag );
+	}
+
 	public double[] getReferenceTracksMSDs()
 	{
 		return getMSDs( referenceTracks );
 	}
 
-	protected double[] getMSDs( final List< TrackSegment > tracks )
+	/**
+	 * Returns the MSD of the reference tracks for lags up to the specified
+	 * value.
+	 * 
+	 * @param maxLag
+	 *            the maximal lag, in frames.
+	 * @return the MSD for lags 1 to <code>maxLag</code>, or up to the largest
+	 *         track duration minus one if it is smaller.
+	 */
+	public double[] getReferenceTracksMSDs( final int maxLag )
 	{
-		int maxTGap = 0;
-		for ( final TrackSegment ts : tracks )
-		{
-			final int trackLength = ( ts.getLastDetection().getT() - ts.getFirstDetection().getT() ) + 1;
-			if ( trackLength - 1 > maxTGap )
-				maxTGap = trackLength - 1;
-		}
-
-		final double[] msds = new double[ maxTGap ];
-		final int[] numJumps = new int[ maxTGap ];
+		return getMSDs( referenceTracks, maxLag );
+	}
 
-		for ( final TrackSegment ts : tracks )
-		{
-			for ( int tGap = 1; tGap <= maxTGap; tGap++ )
-			{
-				final int firstT = ts.getFirstDetection().getT();
-				final int lastT = ts.getLastDetection().getT();
+	protected double[] getMSDs( final List< TrackSegment > tracks )
+	{
+		return getMSDs( tracks, Integer.MAX_VALUE );
+	}
 
-				for ( int t = firstT; t <= lastT - tGap; t++ )
-				{
-					final Detection d1 = ts.getDetectionAtTime( t );
-					if ( d1 != null )
-					{
-						final Detection d2 = ts.getDetectionAtTime( t + tGap );
-						if ( d2 != null )
-						{
-							msds[ tGap - 1 ] += ( d1.getX() - d2.getX() ) * ( d1.getX() - d2.getX() ) + ( d1.getY() - d2.getY() ) * ( d1.getY() - d2.getY() ) + ( d1.getZ() - d2.getZ() ) * ( d1.getZ() - d2.getZ() );
-							numJumps[ tGap - 1 ] += 1;
-						}
-					}
-				}
-			}
-		}
-		for ( int k = 0; k < msds.length; k++ )
-		{
-			if ( numJumps[ k ] > 0 )
-				msds[ k ] /= numJumps[ k ];
-		}
-		return msds;
+	protected double[] getMSDs( final List< TrackSegment > tracks, final int maxLag )
+	{
+		return MeanSquareDisplacements.compute( tracks, maxLag, numThreads );
 	}
 }
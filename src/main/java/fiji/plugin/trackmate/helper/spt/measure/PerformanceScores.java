@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+/**
+ * The scores of a set of candidate tracks against reference tracks, as
+ * defined for the ISBI'2012 Particle Tracking challenge, along with the
+ * track and detection counts they are computed from.
+ * 
+ * @see PerformanceAnalyzer#getScores(DistanceTypes, double)
+ * @author Jean-Yves Tinevez
+ */
+public class PerformanceScores
+{
+
+	/**
+	 * Normalized distance between the paired tracks.
+	 */
+	public final double alpha;
+
+	/**
+	 * Normalized distance between the paired tracks, penalized by the
+	 * spurious tracks.
+	 */
+	public final double beta;
+
+	/**
+	 * Jaccard similarity coefficient for detections.
+	 */
+	public final double detectionsJaccard;
+
+	/**
+	 * Jaccard similarity coefficient for whole tracks.
+	 */
+	public final double tracksJaccard;
+
+	/**
+	 * Root mean square distance between paired detections.
+	 */
+	public final double rmse;
+
+	public final int numPairedTracks;
+
+	public final int numMissedTracks;
+
+	public final int numSpuriousTracks;
+
+	public final int numPairedDetections;
+
+	public final int numMissedDetections;
+
+	public final int numWrongDetections;
+
+	PerformanceScores(
+			final double alpha,
+			final double beta,
+			final double rmse,
+			final int numPairedTracks,
+			final int numMissedTracks,
+			final int numSpuriousTracks,
+			final int numPairedDetections,
+			final int numMissedDetections,
+			final int numWrongDetections )
+	{
+		this.alpha = alpha;
+		this.beta = beta;
+		this.rmse = rmse;
+		this.numPairedTracks = numPairedTracks;
+		this.numMissedTracks = numMissedTracks;
+		this.numSpuriousTracks = numSpuriousTracks;
+		this.numPairedDetections = numPairedDetections;
+		this.numMissedDetections = numMissedDetections;
+		this.numWrongDetections = numWrongDetections;
+		this.detectionsJaccard = numPairedDetections / ( ( double ) numPairedDetections + ( double ) numMissedDetections + numWrongDetections );
+		this.tracksJaccard = numPairedTracks / ( ( double ) numPairedTracks + ( double ) numMissedTracks + numSpuriousTracks );
+	}
+
+	/**
+	 * Returns the scores as a <code>double[]</code> array with alpha, beta,
+	 * JSC, JSCtheta and RMSE.
+	 * 
+	 * @return a new array.
+	 */
+	public double[] toArray()
+	{
+		return new double[] { alpha, beta, detectionsJaccard, tracksJaccard, rmse };
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "alpha = %f, beta = %f, JSC = %f, JSCtheta = %f, RMSE = %f"
+				+ " (tracks: %d paired, %d missed, %d spurious;"
+				+ " detections: %d paired, %d missed, %d wrong)",
+				alpha, beta, detectionsJaccard, tracksJaccard, rmse,
+				numPairedTracks, numMissedTracks, numSpuriousTracks,
+				numPairedDetections, numMissedDetections, numWrongDetections );
+	}
+}
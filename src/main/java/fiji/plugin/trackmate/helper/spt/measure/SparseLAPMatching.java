@@ -0,0 +1,317 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import java.util.Arrays;
+
+/**
+ * Solves the linear assignment problem on a sparse cost matrix, stored in
+ * compressed sparse row (CSR) format.
+ * <p>
+ * Each row is assigned to exactly one column, using only the entries present
+ * in the matrix, so that the sum of the costs is minimal. Missing entries are
+ * forbidden assignments, not costly ones. This is a shortest augmenting path
+ * solver, similar to the one of Jonker and Volgenant: rows are assigned one
+ * after the other, along the shortest path in the residual graph found by a
+ * Dijkstra search on reduced costs. The time is O(n &times; E log m) in the
+ * worst case and the memory is O(E + n + m), where E is the number of
+ * entries, n the number of rows and m the number of columns.
+ * <p>
+ * For the assignment of SPT tracks, each reference track has a dummy
+ * candidate track that no other reference track can use. The dense solvers
+ * never pick a filler entry then, because re-assigning the reference track
+ * to its dummy track is always cheaper. Solving only over the feasible pairs
+ * yields the same optimal cost.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class SparseLAPMatching
+{
+
+	private final int numRows;
+
+	private final int numCols;
+
+	private final int[] rowStart;
+
+	private final int[] cols;
+
+	private final double[] costs;
+
+	/*
+	 * Dijkstra search, per column.
+	 */
+
+	private final double[] dist;
+
+	private final int[] pred;
+
+	private final boolean[] scanned;
+
+	private final int[] touched;
+
+	private int nTouched;
+
+	/*
+	 * Indexed binary min-heap over columns, keyed by dist.
+	 */
+
+	private final int[] heap;
+
+	private final int[] heapPos;
+
+	private int heapSize;
+
+	/**
+	 * Creates the solver.
+	 * 
+	 * @param numRows
+	 *            the number of rows.
+	 * @param numCols
+	 *            the number of columns. Must be larger than or equal to the
+	 *            number of rows.
+	 * @param rowStart
+	 *            for each row, the index of its first entry in the
+	 *            <code>cols</code> and <code>costs</code> arrays. Has
+	 *            <code>numRows + 1</code> elements, the last one being the
+	 *            number of entries.
+	 * @param cols
+	 *            the column of each entry.
+	 * @param costs
+	 *            the cost of each entry. Must be positive.
+	 */
+	public SparseLAPMatching( final int numRows, final int numCols, final int[] rowStart, final int[] cols, final double[] costs )
+	{
+		if ( rowStart.length != numRows + 1 )
+			throw new IllegalArgumentException( "The row start array must have " + ( numRows + 1 ) + " elements, but has " + rowStart.length + "." );
+		if ( cols.length != costs.length || rowStart[ numRows ] != cols.length )
+			throw new IllegalArgumentException( "Inconsistent number of entries in the sparse cost matrix." );
+
+		this.numRows = numRows;
+		this.numCols = numCols;
+		this.rowStart = rowStart;
+		this.cols = cols;
+		this.costs = costs;
+
+		this.dist = new double[ numCols ];
+		this.pred = new int[ numCols ];
+		this.scanned = new boolean[ numCols ];
+		this.touched = new int[ numCols ];
+		this.heap = new int[ numCols ];
+		this.heapPos = new int[ numCols ];
+	}
+
+	/**
+	 * Computes the optimal assignment.
+	 * 
+	 * @return for each row, the column it is assigned to.
+	 * @throws Exception
+	 *             if some rows cannot be assigned.
+	 */
+	public int[] compute() throws Exception
+	{
+		final int[] rowCol = new int[ numRows ];
+		final int[] colRow = new int[ numCols ];
+		Arrays.fill( rowCol, -1 );
+		Arrays.fill( colRow, -1 );
+		Arrays.fill( dist, Double.POSITIVE_INFINITY );
+		Arrays.fill( heapPos, -1 );
+
+		/*
+		 * Potentials. Reduced costs c - u - v are kept positive on all
+		 * entries, and null on assigned entries.
+		 */
+		final double[] u = new double[ numRows ];
+		final double[] v = new double[ numCols ];
+
+		// Initial row reduction and greedy assignment on null reduced costs.
+		for ( int i = 0; i < numRows; i++ )
+		{
+			if ( rowStart[ i ] == rowStart[ i + 1 ] )
+				throw new Exception( "Row " + i + " has no feasible assignment." );
+
+			double min = Double.POSITIVE_INFINITY;
+			int argmin = -1;
+			for ( int e = rowStart[ i ]; e < rowStart[ i + 1 ]; e++ )
+			{
+				if ( costs[ e ] < min )
+				{
+					min = costs[ e ];
+					argmin = cols[ e ];
+				}
+			}
+			u[ i ] = min;
+			if ( colRow[ argmin ] < 0 )
+			{
+				colRow[ argmin ] = i;
+				rowCol[ i ] = argmin;
+			}
+		}
+
+		// Augment the remaining free rows.
+		final int[] scannedRows = new int[ numRows ];
+		for ( int source = 0; source < numRows; source++ )
+		{
+			if ( rowCol[ source ] >= 0 )
+				continue;
+
+			nTouched = 0;
+			heapSize = 0;
+			int nScannedRows = 0;
+			scannedRows[ nScannedRows++ ] = source;
+			relax( source, 0., u, v );
+
+			int end = -1;
+			double dEnd = 0.;
+			while ( heapSize > 0 )
+			{
+				final int j = poll();
+				scanned[ j ] = true;
+				if ( colRow[ j ] < 0 )
+				{
+					end = j;
+					dEnd = dist[ j ];
+					break;
+				}
+				final int i = colRow[ j ];
+				scannedRows[ nScannedRows++ ] = i;
+				relax( i, dist[ j ], u, v );
+			}
+			if ( end < 0 )
+				throw new Exception( "No complete assignment exists for row " + source + "." );
+
+			// Update potentials.
+			u[ source ] += dEnd;
+			for ( int k = 1; k < nScannedRows; k++ )
+			{
+				final int i = scannedRows[ k ];
+				u[ i ] += dEnd - dist[ rowCol[ i ] ];
+			}
+			for ( int k = 0; k < nTouched; k++ )
+			{
+				final int j = touched[ k ];
+				if ( scanned[ j ] && j != end )
+					v[ j ] += dist[ j ] - dEnd;
+			}
+
+			// Augment along the path.
+			int j = end;
+			while ( true )
+			{
+				final int i = pred[ j ];
+				final int next = rowCol[ i ];
+				rowCol[ i ] = j;
+				colRow[ j ] = i;
+				if ( i == source )
+					break;
+				j = next;
+			}
+
+			// Reset search state.
+			for ( int k = 0; k < nTouched; k++ )
+			{
+				final int c = touched[ k ];
+				dist[ c ] = Double.POSITIVE_INFINITY;
+				scanned[ c ] = false;
+				heapPos[ c ] = -1;
+			}
+		}
+		return rowCol;
+	}
+
+	private void relax( final int i, final double d, final double[] u, final double[] v )
+	{
+		for ( int e = rowStart[ i ]; e < rowStart[ i + 1 ]; e++ )
+		{
+			final int j = cols[ e ];
+			if ( scanned[ j ] )
+				continue;
+
+			final double nd = d + Math.max( 0., costs[ e ] - u[ i ] - v[ j ] );
+			if ( nd < dist[ j ] )
+			{
+				if ( dist[ j ] == Double.POSITIVE_INFINITY )
+					touched[ nTouched++ ] = j;
+				dist[ j ] = nd;
+				pred[ j ] = i;
+				if ( heapPos[ j ] < 0 )
+				{
+					heap[ heapSize ] = j;
+					heapPos[ j ] = heapSize;
+					heapSize++;
+				}
+				siftUp( heapPos[ j ] );
+			}
+		}
+	}
+
+	private int poll()
+	{
+		final int top = heap[ 0 ];
+		heapSize--;
+		if ( heapSize > 0 )
+		{
+			heap[ 0 ] = heap[ heapSize ];
+			heapPos[ heap[ 0 ] ] = 0;
+			siftDown( 0 );
+		}
+		heapPos[ top ] = -1;
+		return top;
+	}
+
+	private void siftUp( int k )
+	{
+		final int c = heap[ k ];
+		while ( k > 0 )
+		{
+			final int parent = ( k - 1 ) >>> 1;
+			final int p = heap[ parent ];
+			if ( dist[ p ] <= dist[ c ] )
+				break;
+			heap[ k ] = p;
+			heapPos[ p ] = k;
+			k = parent;
+		}
+		heap[ k ] = c;
+		heapPos[ c ] = k;
+	}
+
+	private void siftDown( int k )
+	{
+		final int c = heap[ k ];
+		final int half = heapSize >>> 1;
+		while ( k < half )
+		{
+			int child = 2 * k + 1;
+			final int right = child + 1;
+			if ( right < heapSize && dist[ heap[ right ] ] < dist[ heap[ child ] ] )
+				child = right;
+			if ( dist[ c ] <= dist[ heap[ child ] ] )
+				break;
+			heap[ k ] = heap[ child ];
+			heapPos[ heap[ k ] ] = k;
+			k = child;
+		}
+		heap[ k ] = c;
+		heapPos[ c ] = k;
+	}
+}
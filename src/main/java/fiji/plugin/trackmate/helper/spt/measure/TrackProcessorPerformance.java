@@ -45,6 +45,19 @@ public class TrackProcessorPerformance
 
 	private final ArrayList< TrackSegment > spuriousTracks = new ArrayList< TrackSegment >();
 
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Sets the number of threads used to pair tracks.
+	 * 
+	 * @param numThreads
+	 *            the number of threads.
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
 	public void setTrackGroups( final TrackGroup refTG, final TrackGroup candidateTG )
 	{
 		trackPairs.clear();
@@ -59,15 +72,24 @@ public class TrackProcessorPerformance
 			final List< TrackSegment > trackSegmentList2,
 			final double maxDist )
 	{
-		final boolean newMethod = true;
+		return pairTracks( trackSegmentList1, trackSegmentList2, maxDist, AssignmentSolvers.SPARSE );
+	}
+
+	public PerformanceAnalyzer pairTracks(
+			final List< TrackSegment > trackSegmentList1,
+			final List< TrackSegment > trackSegmentList2,
+			final double maxDist,
+			final AssignmentSolvers solver )
+	{
 		final OneToOneMatcher matcher = new OneToOneMatcher( trackSegmentList1, trackSegmentList2 );
+		matcher.setNumThreads( numThreads );
 		final DistanceTypes distType = DistanceTypes.DISTANCE_EUCLIDIAN;
 		if ( maxDist < 0 )
 			return null;
 		final ArrayList< TrackPair > pairs = new ArrayList< TrackPair >();
 		try
 		{
-			pairs.addAll( matcher.pairTracks( maxDist, distType, newMethod ) );
+			pairs.addAll( matcher.pairTracks( maxDist, distType, solver ) );
 		}
 		catch ( final Exception e )
 		{
@@ -111,6 +133,7 @@ public class TrackProcessorPerformance
 
 		// Chronometer debug3 = new Chronometer("Perf Analyzer");
 		final PerformanceAnalyzer analyzer = new PerformanceAnalyzer( trackSegmentList1, trackSegmentList2, trackPairs );
+		analyzer.setNumThreads( numThreads );
 		// debug3.displayMs();
 
 		return analyzer;
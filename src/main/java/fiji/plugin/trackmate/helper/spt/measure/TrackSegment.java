@@ -40,10 +40,13 @@
 package fiji.plugin.trackmate.helper.spt.measure;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
 
 /**
  * TrackSegment is a pool of consecutive detection.
@@ -69,6 +72,12 @@ public class TrackSegment implements Cloneable
 
 	private int id = 0;
 
+	/**
+	 * Frame index of the detections, built when first needed and discarded
+	 * when the detection list is modified.
+	 */
+	private volatile Frames frames = null;
+
 	private static final Random RANDOM = new Random();
 
 	public static TrackSegment getTrackSegmentById( final int id )
@@ -119,6 +128,7 @@ public class TrackSegment implements Cloneable
 			cloneSegment.detectionList.add( cloneDetection );
 		}
 
+		cloneSegment.frames = null;
 		previousList = new ArrayList< TrackSegment >( previousList );
 		nextList = new ArrayList< TrackSegment >( nextList );
 
@@ -267,12 +277,14 @@ public class TrackSegment implements Cloneable
 			// detection.setOwnerTrackSegment(this);
 		}
 		detectionList.add( detection );
+		frames = null;
 	}
 
 	public void removeDetection( final Detection detection )
 	{
 		// detection.setOwnerTrackSegment(null);
 		detectionList.remove( detection );
+		frames = null;
 	}
 
 	/** Remove a detection in the segmentTrack */
@@ -280,6 +292,7 @@ public class TrackSegment implements Cloneable
 	{
 		// getLastDetection().ownerTrackSegment = null;
 		detectionList.remove( getLastDetection() );
+		frames = null;
 	}
 
 	/** Add a TrackSegment before this trackSegment */
@@ -328,12 +341,25 @@ public class TrackSegment implements Cloneable
 	/** return detection at time t */
 	public Detection getDetectionAtTime( final int t )
 	{
-		for ( final Detection detection : detectionList )
+		final Frames f = frames();
+		final int i = f.index( t );
+		return i < 0 ? null : f.detections[ i ];
+	}
+
+	/**
+	 * Returns the frame index of this track, built from the detection list
+	 * if needed. The index must not be kept after the detection list is
+	 * modified.
+	 */
+	Frames frames()
+	{
+		Frames f = frames;
+		if ( f == null || f.size != detectionList.size() )
 		{
-			if ( detection.getT() == t )
-				return detection;
+			f = new Frames( detectionList );
+			frames = f;
 		}
-		return null;
+		return f;
 	}
 
 	/**
@@ -382,4 +408,145 @@ public class TrackSegment implements Cloneable
 		for ( final TrackSegment nextTrackSegment : nextListCopy )
 			removeNext( nextTrackSegment );
 	}
+
+	/**
+	 * Constant-time lookup of the detections of a track by frame, with their
+	 * position and type stored in primitive arrays.
+	 * <p>
+	 * Tracks built with {@link TrackSegment#addDetection(Detection)} have
+	 * consecutive frames, so the detection at frame <code>t</code> is at
+	 * offset <code>t - firstT</code>. Frames with no detection are marked
+	 * with a type of 0 and NaN positions. If several detections share the
+	 * same frame, only the first one is indexed, like with a linear scan of
+	 * the detection list. Tracks that have very sparse frames are indexed
+	 * in sorted arrays and looked up by binary search instead.
+	 */
+	static final class Frames
+	{
+
+		/**
+		 * Type of frames in which the track has no detection.
+		 */
+		static final int NO_DETECTION = 0;
+
+		/**
+		 * Number of detections in the list this index was built from.
+		 */
+		final int size;
+
+		final int firstT;
+
+		final int lastT;
+
+		/**
+		 * The frame of each slot. <code>t[i] == firstT + i</code> when the
+		 * index is dense.
+		 */
+		final int[] t;
+
+		final double[] x;
+
+		final double[] y;
+
+		final double[] z;
+
+		final int[] type;
+
+		final Detection[] detections;
+
+		private final boolean dense;
+
+		private Frames( final List< Detection > detectionList )
+		{
+			this.size = detectionList.size();
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			for ( final Detection d : detectionList )
+			{
+				min = Math.min( min, d.getT() );
+				max = Math.max( max, d.getT() );
+			}
+			final long span = size == 0 ? 0 : ( long ) max - min + 1;
+			this.dense = span <= 4l * size + 64;
+			this.firstT = size == 0 ? 0 : min;
+			this.lastT = size == 0 ? -1 : max;
+
+			final List< Detection > slots;
+			if ( dense )
+			{
+				slots = new ArrayList<>( Collections.nCopies( ( int ) span, ( Detection ) null ) );
+				for ( final Detection d : detectionList )
+				{
+					final int i = d.getT() - firstT;
+					if ( slots.get( i ) == null )
+						slots.set( i, d );
+				}
+			}
+			else
+			{
+				final Map< Integer, Detection > map = new TreeMap<>();
+				for ( final Detection d : detectionList )
+					map.putIfAbsent( Integer.valueOf( d.getT() ), d );
+				slots = new ArrayList<>( map.values() );
+			}
+
+			final int n = slots.size();
+			this.t = new int[ n ];
+			this.x = new double[ n ];
+			this.y = new double[ n ];
+			this.z = new double[ n ];
+			this.type = new int[ n ];
+			this.detections = slots.toArray( new Detection[ n ] );
+			for ( int i = 0; i < n; i++ )
+			{
+				final Detection d = detections[ i ];
+				if ( d == null )
+				{
+					t[ i ] = firstT + i;
+					x[ i ] = Double.NaN;
+					y[ i ] = Double.NaN;
+					z[ i ] = Double.NaN;
+					type[ i ] = NO_DETECTION;
+				}
+				else
+				{
+					t[ i ] = d.getT();
+					x[ i ] = d.getX();
+					y[ i ] = d.getY();
+					z[ i ] = d.getZ();
+					type[ i ] = d.getDetectionType();
+				}
+			}
+		}
+
+		/**
+		 * Returns the slot of the specified frame in the arrays of this
+		 * index, or -1 if the track has no detection at this frame.
+		 */
+		int index( final int frame )
+		{
+			if ( dense )
+			{
+				final int i = frame - firstT;
+				return ( i < 0 || i >= t.length || detections[ i ] == null ) ? -1 : i;
+			}
+			final int i = Arrays.binarySearch( t, frame );
+			return i < 0 ? -1 : i;
+		}
+
+		/**
+		 * Returns the Euclidian distance between the detection in slot
+		 * <code>i</code> of <code>a</code> and the detection in slot
+		 * <code>j</code> of <code>b</code>, or NaN if one of the slots is -1.
+		 */
+		static double distance( final Frames a, final int i, final Frames b, final int j )
+		{
+			if ( i < 0 || j < 0 )
+				return Double.NaN;
+			final double dx = a.x[ i ] - b.x[ j ];
+			final double dy = a.y[ i ] - b.y[ j ];
+			final double dz = a.z[ i ] - b.z[ j ];
+			return Math.sqrt( dx * dx + dy * dy + dz * dz );
+		}
+	}
 }
@@ -21,6 +21,8 @@
  */
 package fiji.plugin.trackmate.helper.spt.measure;
 
+import fiji.plugin.trackmate.helper.spt.measure.TrackSegment.Frames;
+
 /**
  * Utility for computing the distance between two tracks
  * 
@@ -31,7 +33,7 @@ package fiji.plugin.trackmate.helper.spt.measure;
  */
 public class TrackToTrackDistance
 {
-	
+
 	double distance;
 
 	boolean isMatching = false;
@@ -70,135 +72,170 @@ public class TrackToTrackDistance
 	 */
 	public TrackToTrackDistance( final TrackSegment ts1, final TrackSegment ts2, final DistanceTypes distanceType, final double maxDist )
 	{
+		compute( ts1, ts2, distanceType, maxDist, Double.POSITIVE_INFINITY, this );
+	}
+
+	/**
+	 * Creates an empty result holder, to be filled by
+	 * {@link #compute(TrackSegment, TrackSegment, DistanceTypes, double, double, TrackToTrackDistance)}.
+	 */
+	public TrackToTrackDistance()
+	{}
+
+	private void reset()
+	{
+		distance = 0;
+		isMatching = false;
+		firstMatchingTime = -1;
+		lastMatchingTime = -1;
+		numMatchingDetections = 0;
+		numNonMatchedDetections = 0;
+		numWrongDetections = 0;
+		minDetectionDistance = Double.MAX_VALUE;
+		maxDetectionDistance = 0;
+		sumSquareDetectionDistance = 0;
+		sumDetectionDistance = 0;
+	}
+
+	/**
+	 * Compute the distance between two tracks, and store the results in the
+	 * specified holder. This method does not allocate objects once the frame
+	 * index of the two tracks is built, and can stop early when the distance
+	 * exceeds a bound.
+	 * 
+	 * @param ts1
+	 *            the first track
+	 * @param ts2
+	 *            the track with which to compare the first track
+	 * @param distanceType
+	 *            the type of distance between detections that is used for the
+	 *            computation
+	 * @param maxDist
+	 *            the gate that is used for computing the distance between
+	 *            detections
+	 * @param bound
+	 *            the computation stops as soon as the distance exceeds this
+	 *            value. The distance only grows along the tracks, so the final
+	 *            distance would exceed it too.
+	 * @param out
+	 *            the holder to store the results in. Its previous content is
+	 *            discarded.
+	 * @return <code>true</code> if the computation went to the end, and
+	 *         <code>false</code> if it stopped because the distance exceeded
+	 *         the bound. In the latter case the results are incomplete.
+	 */
+	public static boolean compute(
+			final TrackSegment ts1,
+			final TrackSegment ts2,
+			final DistanceTypes distanceType,
+			final double maxDist,
+			final double bound,
+			final TrackToTrackDistance out )
+	{
+		out.reset();
+		final int t0_1 = ts1.getFirstDetection().getT();
+		final int tend_1 = ts1.getLastDetection().getT();
 		if ( ts2 == null || ts2.getDetectionList().isEmpty() )
 		{
-			isMatching = false;
 			switch ( distanceType )
 			{
 			case DISTANCE_EUCLIDIAN:
-				distance = maxDist * ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
+				out.distance = maxDist * ( tend_1 - t0_1 + 1 );
 				break;
 			case DISTANCE_MATCHING:
-				distance = ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
+				out.distance = ( tend_1 - t0_1 + 1 );
 				break;
 			}
-			numMatchingDetections = 0;
-			numNonMatchedDetections = ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
-			numWrongDetections = 0;
-			return;
+			out.numNonMatchedDetections = ( tend_1 - t0_1 + 1 );
+			return out.distance <= bound;
 		}
-		final int t0_1 = ts1.getFirstDetection().getT();
-		final int tend_1 = ts1.getLastDetection().getT();
 		final int t0_2 = ts2.getFirstDetection().getT();
 		final int tend_2 = ts2.getLastDetection().getT();
 
 		// test if there is an intersection between segments
-		if ( ( t0_2 >= t0_1 && t0_2 <= tend_1 ) || ( tend_2 >= t0_1 && tend_2 <= tend_1 ) || ( t0_2 <= t0_1 && tend_2 >= tend_1 ) )
+		if ( !( ( t0_2 >= t0_1 && t0_2 <= tend_1 ) || ( tend_2 >= t0_1 && tend_2 <= tend_1 ) || ( t0_2 <= t0_1 && tend_2 >= tend_1 ) ) )
 		{
-			numWrongDetections += Math.max( 0, t0_1 - t0_2 );
-			numWrongDetections += Math.max( 0, tend_2 - tend_1 );
-
-			numNonMatchedDetections += Math.max( 0, t0_2 - t0_1 );
-			numNonMatchedDetections += Math.max( 0, tend_1 - tend_2 );
-
-			final int firstT = Math.max( t0_1, t0_2 );
-			final int endT = Math.min( tend_1, tend_2 );
+			out.numWrongDetections = ( tend_2 - t0_2 + 1 );
+			out.numNonMatchedDetections = ( tend_1 - t0_1 + 1 );
 			switch ( distanceType )
 			{
 			case DISTANCE_EUCLIDIAN:
-			{
-				distance = maxDist * ( Math.abs( t0_2 - t0_1 ) + Math.abs( tend_2 - tend_1 ) );
-				for ( int t = firstT; t <= endT; t++ )
-				{
-					final Detection d1 = ts1.getDetectionAtTime( t );
-					final Detection d2 = ts2.getDetectionAtTime( t );
-					final double ed = Math.sqrt( ( d1.getX() - d2.getX() ) * ( d1.getX() - d2.getX() ) + ( d1.getY() - d2.getY() ) * ( d1.getY() - d2.getY() ) + ( d1.getZ() - d2.getZ() ) * ( d1.getZ() - d2.getZ() ) );
-					if ( d2.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION && ed < maxDist )
-					{
-						if ( !isMatching )
-						{
-							firstMatchingTime = t;
-							isMatching = true;
-						}
-						lastMatchingTime = t;
-						distance += ed;
-						numMatchingDetections++;
-						// distance between detections
-						sumDetectionDistance += ed;
-						sumSquareDetectionDistance += ( ed * ed );
-						if ( ed < minDetectionDistance )
-							minDetectionDistance = ed;
-						else if ( ed > maxDetectionDistance )
-							maxDetectionDistance = ed;
-					}
-					else
-					{
-						// virtual detections are not considered as spurious
-						// detections
-						if ( d2.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION )
-							numWrongDetections++;
-						numNonMatchedDetections++;
-						distance += maxDist;
-					}
-				}
+				out.distance = maxDist * ( tend_1 - t0_1 + 1 );
 				break;
-			}
 			case DISTANCE_MATCHING:
+				out.distance = ( tend_1 - t0_1 + 1 );
+				break;
+			}
+			return out.distance <= bound;
+		}
+
+		out.numWrongDetections += Math.max( 0, t0_1 - t0_2 );
+		out.numWrongDetections += Math.max( 0, tend_2 - tend_1 );
+
+		out.numNonMatchedDetections += Math.max( 0, t0_2 - t0_1 );
+		out.numNonMatchedDetections += Math.max( 0, tend_1 - tend_2 );
+
+		/*
+		 * With the Euclidian distance, matching detections cost their
+		 * distance and others cost the gate. With the matching distance,
+		 * matching detections cost nothing and others cost 1.
+		 */
+		final boolean euclidian = distanceType == DistanceTypes.DISTANCE_EUCLIDIAN;
+		final double unmatchedCost = euclidian ? maxDist : 1.;
+		double distance = unmatchedCost * ( Math.abs( t0_2 - t0_1 ) + Math.abs( tend_2 - tend_1 ) );
+		if ( distance > bound )
+		{
+			out.distance = distance;
+			return false;
+		}
+
+		final Frames f1 = ts1.frames();
+		final Frames f2 = ts2.frames();
+		final int firstT = Math.max( t0_1, t0_2 );
+		final int endT = Math.min( tend_1, tend_2 );
+		boolean matching = false;
+		for ( int t = firstT; t <= endT; t++ )
+		{
+			final int i2 = f2.index( t );
+			final boolean real2 = i2 >= 0 && f2.type[ i2 ] == Detection.DETECTIONTYPE_REAL_DETECTION;
+			final double ed = Frames.distance( f1, f1.index( t ), f2, i2 );
+			if ( real2 && ed < maxDist )
 			{
-				boolean matching = false;
-				distance = ( Math.abs( t0_2 - t0_1 ) + Math.abs( tend_2 - tend_1 ) );
-				for ( int t = firstT; t <= endT; t++ )
+				if ( !matching )
 				{
-					final Detection d1 = ts1.getDetectionAtTime( t );
-					final Detection d2 = ts2.getDetectionAtTime( t );
-					final double ed = Math.sqrt( ( d1.getX() - d2.getX() ) * ( d1.getX() - d2.getX() ) + ( d1.getY() - d2.getY() ) * ( d1.getY() - d2.getY() ) + ( d1.getZ() - d2.getZ() ) * ( d1.getZ() - d2.getZ() ) );
-					if ( d2.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION && ed < maxDist )
-					{
-						if ( !matching )
-						{
-							firstMatchingTime = t;
-							matching = true;
-						}
-						lastMatchingTime = t;
-						// not penalty if matching
-						numMatchingDetections++;
-						// distance between detections
-						sumDetectionDistance += ed;
-						sumSquareDetectionDistance += ( ed * ed );
-						if ( ed < minDetectionDistance )
-							minDetectionDistance = ed;
-						else if ( ed > maxDetectionDistance )
-							maxDetectionDistance = ed;
-					}
-					else
-					{
-						distance++;
-						// virtual detections are not considered as spurious
-						// detections
-						if ( d2.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION )
-							numWrongDetections++;
-						numNonMatchedDetections++;
-					}
+					out.firstMatchingTime = t;
+					matching = true;
 				}
-				break;
+				out.lastMatchingTime = t;
+				if ( euclidian )
+					distance += ed;
+				out.numMatchingDetections++;
+				// distance between detections
+				out.sumDetectionDistance += ed;
+				out.sumSquareDetectionDistance += ( ed * ed );
+				if ( ed < out.minDetectionDistance )
+					out.minDetectionDistance = ed;
+				else if ( ed > out.maxDetectionDistance )
+					out.maxDetectionDistance = ed;
 			}
+			else
+			{
+				// virtual detections are not considered as spurious
+				// detections
+				if ( real2 )
+					out.numWrongDetections++;
+				out.numNonMatchedDetections++;
+				distance += unmatchedCost;
 			}
-		}
-		else
-		{
-			numMatchingDetections = 0;
-			numWrongDetections += ( ts2.getLastDetection().getT() - ts2.getFirstDetection().getT() + 1 );
-			numNonMatchedDetections += ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
-			isMatching = false;
-			switch ( distanceType )
+			if ( distance > bound )
 			{
-			case DISTANCE_EUCLIDIAN:
-				distance = maxDist * ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
-				break;
-			case DISTANCE_MATCHING:
-				distance = ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
-				break;
+				out.distance = distance;
+				return false;
 			}
 		}
+		out.distance = distance;
+		// only the Euclidian distance reports matching tracks
+		out.isMatching = euclidian && matching;
+		return true;
 	}
 }
@@ -29,6 +29,7 @@ import javax.swing.JFrame;
 import org.scijava.Cancelable;
 
 import fiji.plugin.trackmate.gui.Icons;
+import fiji.plugin.trackmate.helper.DetectionCache;
 import fiji.plugin.trackmate.helper.HelperRunner;
 import fiji.plugin.trackmate.helper.ResultsCrawler;
 import fiji.plugin.trackmate.helper.model.ParameterSweepModel;
@@ -99,6 +100,12 @@ public class ParameterSweepController implements Cancelable
 		final boolean saveEachTime = gui.chckbxSaveTrackMateFile.isSelected();
 		runner.setSaveTrackMateFiles( saveEachTime );
 
+		final boolean cacheDetections = gui.chckbxCacheDetections.isSelected();
+		runner.setDetectionCacheMaxSize( cacheDetections ? DetectionCache.DEFAULT_MAX_SIZE : 0l );
+
+		final int numWorkers = gui.sliderWorkers.getValue();
+		runner.setNumThreads( numWorkers );
+
 		gui.tabbedPane.setSelectedIndex( 0 );
 		new Thread( "TrackMate Helper runner thread" )
 		{
@@ -63,6 +63,7 @@ import fiji.plugin.trackmate.features.track.TrackBranchingAnalyzer;
 import fiji.plugin.trackmate.gui.Fonts;
 import fiji.plugin.trackmate.gui.components.LogPanel;
 import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings.TrackMateObject;
+import fiji.plugin.trackmate.helper.DetectionCache;
 import fiji.plugin.trackmate.helper.ResultsCrawler;
 import fiji.plugin.trackmate.helper.model.AbstractSweepModel.ModelListener;
 import fiji.plugin.trackmate.helper.model.ParameterSweepModel;
@@ -103,6 +104,10 @@ public class ParameterSweepPanel extends JPanel
 
 	final JCheckBox chckbxSaveTrackMateFile;
 
+	final JCheckBox chckbxCacheDetections;
+
+	final JSlider sliderWorkers;
+
 	final Logger logger;
 
 	final ResultsCrawler crawler;
@@ -358,9 +363,9 @@ public class ParameterSweepPanel extends JPanel
 		panelPath.setBorder( new EmptyBorder( 5, 5, 5, 5 ) );
 		final GridBagLayout gblPanelPath = new GridBagLayout();
 		gblPanelPath.columnWidths = new int[] { 0, 0, 0 };
-		gblPanelPath.rowHeights = new int[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+		gblPanelPath.rowHeights = new int[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
 		gblPanelPath.columnWeights = new double[] { 1.0, 0.0, Double.MIN_VALUE };
-		gblPanelPath.rowWeights = new double[] { 0.0, 0.0, 0.0, 1.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 1.0, Double.MIN_VALUE };
+		gblPanelPath.rowWeights = new double[] { 0.0, 0.0, 0.0, 1.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 1.0, Double.MIN_VALUE };
 		panelPath.setLayout( gblPanelPath );
 
 		final JLabel lblSourceImage = new JLabel( "Source image:" );
@@ -461,12 +466,54 @@ public class ParameterSweepPanel extends JPanel
 		gbcChckbxSaveTrackMateFile.gridy = 8;
 		panelPath.add( chckbxSaveTrackMateFile, gbcChckbxSaveTrackMateFile );
 
+		chckbxCacheDetections = new JCheckBox( "Cache detection results in the results folder" );
+		chckbxCacheDetections.setFont( SMALL_FONT );
+		chckbxCacheDetections.setToolTipText( "<html>Store the detection results in the "
+				+ DetectionCache.CACHE_FOLDER_NAME + " sub-folder,"
+				+ "<br>up to " + ( DetectionCache.DEFAULT_MAX_SIZE >> 20 ) + " MB, so that later runs "
+				+ "<br>can skip the detections already done.</html>" );
+		final GridBagConstraints gbcChckbxCacheDetections = new GridBagConstraints();
+		gbcChckbxCacheDetections.insets = new Insets( 0, 0, 5, 0 );
+		gbcChckbxCacheDetections.gridwidth = 2;
+		gbcChckbxCacheDetections.anchor = GridBagConstraints.WEST;
+		gbcChckbxCacheDetections.gridx = 0;
+		gbcChckbxCacheDetections.gridy = 9;
+		panelPath.add( chckbxCacheDetections, gbcChckbxCacheDetections );
+
+		final JPanel panelWorkers = new JPanel();
+		final FlowLayout flowLayoutWorkers = ( FlowLayout ) panelWorkers.getLayout();
+		flowLayoutWorkers.setAlignment( FlowLayout.LEFT );
+		final GridBagConstraints gbcPanelWorkers = new GridBagConstraints();
+		gbcPanelWorkers.gridwidth = 2;
+		gbcPanelWorkers.insets = new Insets( 0, 0, 5, 0 );
+		gbcPanelWorkers.fill = GridBagConstraints.HORIZONTAL;
+		gbcPanelWorkers.gridx = 0;
+		gbcPanelWorkers.gridy = 10;
+		panelPath.add( panelWorkers, gbcPanelWorkers );
+
+		final JLabel lblWorkers = new JLabel( "Parallel workers:" );
+		lblWorkers.setFont( SMALL_FONT );
+		panelWorkers.add( lblWorkers );
+
+		sliderWorkers = new JSlider();
+		sliderWorkers.setMinimum( 1 );
+		sliderWorkers.setMaximum( Math.max( 1, Runtime.getRuntime().availableProcessors() ) );
+		sliderWorkers.setValue( 1 );
+		sliderWorkers.setToolTipText( "<html>Number of tests run concurrently. The cores are "
+				+ "<br>split between them. More workers use more memory.</html>" );
+		panelWorkers.add( sliderWorkers );
+
+		final JLabel labelWorkers = new JLabel( "1" );
+		labelWorkers.setFont( SMALL_FONT );
+		panelWorkers.add( labelWorkers );
+		sliderWorkers.addChangeListener( e -> labelWorkers.setText( "" + sliderWorkers.getValue() ) );
+
 		final GridBagConstraints gbcSeparator4 = new GridBagConstraints();
 		gbcSeparator4.fill = GridBagConstraints.BOTH;
 		gbcSeparator4.gridwidth = 2;
 		gbcSeparator4.insets = new Insets( 0, 0, 5, 0 );
 		gbcSeparator4.gridx = 0;
-		gbcSeparator4.gridy = 9;
+		gbcSeparator4.gridy = 11;
 		panelPath.add( new JSeparator(), gbcSeparator4 );
 
 		final JPanel panelButtons = new JPanel();
@@ -477,7 +524,7 @@ public class ParameterSweepPanel extends JPanel
 		gbcPanelButtons.gridwidth = 2;
 		gbcPanelButtons.fill = GridBagConstraints.HORIZONTAL;
 		gbcPanelButtons.gridx = 0;
-		gbcPanelButtons.gridy = 10;
+		gbcPanelButtons.gridy = 12;
 		panelPath.add( panelButtons, gbcPanelButtons );
 
 		btnStop = new JButton( "Stop" );
@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cross-checks the sparse assignment solver against the dense Hungarian
+ * solvers on random track sets: the total cost of the pairings they return
+ * must be the same.
+ */
+public class AssignmentSolversTestDrive
+{
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final int nRuns = 50;
+		final int nFrames = 50;
+		final double maxDist = 1.;
+		final Random ran = new Random( 1l );
+
+		int nErrors = 0;
+		for ( int run = 0; run < nRuns; run++ )
+		{
+			final int nTracks = 10 + ran.nextInt( 200 );
+			final double size = 5. + ran.nextDouble() * 40.;
+			final List< TrackSegment > references = randomTracks( ran, nTracks, nFrames, size );
+			final List< TrackSegment > candidates = noisyCopy( ran, references, 0.4 );
+			candidates.addAll( randomTracks( ran, nTracks / 5, nFrames, size ) );
+
+			final double[] totals = new double[ AssignmentSolvers.values().length ];
+			final long[] times = new long[ totals.length ];
+			for ( final AssignmentSolvers solver : AssignmentSolvers.values() )
+			{
+				final long start = System.currentTimeMillis();
+				final OneToOneMatcher matcher = new OneToOneMatcher( references, candidates );
+				final List< TrackPair > pairs = matcher.pairTracks( maxDist, DistanceTypes.DISTANCE_EUCLIDIAN, solver );
+				times[ solver.ordinal() ] = System.currentTimeMillis() - start;
+
+				if ( pairs.size() != references.size() )
+				{
+					System.out.println( "Run " + run + " - " + solver + " paired " + pairs.size() + " tracks out of " + references.size() );
+					nErrors++;
+				}
+				for ( final TrackPair tp : pairs )
+					totals[ solver.ordinal() ] += tp.distance;
+			}
+
+			final double ref = totals[ AssignmentSolvers.HUNGARIAN.ordinal() ];
+			final StringBuilder str = new StringBuilder( String.format( "Run %2d - %3d tracks:", run, nTracks ) );
+			for ( final AssignmentSolvers solver : AssignmentSolvers.values() )
+			{
+				final double total = totals[ solver.ordinal() ];
+				final boolean ok = Math.abs( total - ref ) <= 1e-9 * Math.max( 1., Math.abs( ref ) );
+				if ( !ok )
+					nErrors++;
+				str.append( String.format( "  %s = %.6f in %d ms%s", solver, total, times[ solver.ordinal() ], ok ? "" : " MISMATCH" ) );
+			}
+			System.out.println( str );
+		}
+		System.out.println( nErrors == 0 ? "All solvers agree." : nErrors + " errors." );
+	}
+
+	private static List< TrackSegment > randomTracks( final Random ran, final int nTracks, final int nFrames, final double size )
+	{
+		final List< TrackSegment > tracks = new ArrayList<>( nTracks );
+		for ( int i = 0; i < nTracks; i++ )
+		{
+			final int t0 = ran.nextInt( nFrames - 2 );
+			final int t1 = t0 + 1 + ran.nextInt( nFrames - t0 - 1 );
+			double x = ran.nextDouble() * size;
+			double y = ran.nextDouble() * size;
+			final TrackSegment track = new TrackSegment();
+			for ( int t = t0; t <= t1; t++ )
+			{
+				track.addDetection( new Detection( x, y, 0., t ) );
+				x += 0.3 * ran.nextGaussian();
+				y += 0.3 * ran.nextGaussian();
+			}
+			tracks.add( track );
+		}
+		return tracks;
+	}
+
+	private static List< TrackSegment > noisyCopy( final Random ran, final List< TrackSegment > tracks, final double noise )
+	{
+		final List< TrackSegment > copies = new ArrayList<>( tracks.size() );
+		for ( final TrackSegment track : tracks )
+		{
+			if ( ran.nextDouble() < 0.1 )
+				continue;
+
+			final TrackSegment copy = new TrackSegment();
+			for ( final Detection d : track.getDetectionList() )
+				copy.addDetection( new Detection(
+						d.getX() + noise * ran.nextGaussian(),
+						d.getY() + noise * ran.nextGaussian(),
+						0., d.getT() ) );
+			copies.add( copy );
+		}
+		return copies;
+	}
+}
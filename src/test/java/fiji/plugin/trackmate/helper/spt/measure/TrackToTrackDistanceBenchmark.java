@@ -0,0 +1,152 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Micro-benchmark of the track-to-track distance computation. Compares the
+ * former implementation, walking detections with a linear search per frame,
+ * to the constructor and to the allocation-free kernel, with and without
+ * early exit.
+ */
+public class TrackToTrackDistanceBenchmark
+{
+
+	private static final int N_TRACKS = 300;
+
+	private static final int N_FRAMES = 200;
+
+	private static final double MAX_DIST = 1.;
+
+	private static final int N_ROUNDS = 10;
+
+	private static double sink;
+
+	public static void main( final String[] args )
+	{
+		final Random ran = new Random( 1l );
+		final List< TrackSegment > references = new ArrayList<>();
+		final List< TrackSegment > candidates = new ArrayList<>();
+		for ( int i = 0; i < N_TRACKS; i++ )
+		{
+			final int t0 = ran.nextInt( N_FRAMES / 2 );
+			final int t1 = t0 + 10 + ran.nextInt( N_FRAMES / 2 - 10 );
+			double x = ran.nextDouble() * 20.;
+			double y = ran.nextDouble() * 20.;
+			final TrackSegment reference = new TrackSegment();
+			final TrackSegment candidate = new TrackSegment();
+			for ( int t = t0; t <= t1; t++ )
+			{
+				reference.addDetection( new Detection( x, y, 0., t ) );
+				candidate.addDetection( new Detection( x + 0.3 * ran.nextGaussian(), y + 0.3 * ran.nextGaussian(), 0., t ) );
+				x += 0.2 * ran.nextGaussian();
+				y += 0.2 * ran.nextGaussian();
+			}
+			references.add( reference );
+			candidates.add( candidate );
+		}
+
+		final long nPairs = ( long ) N_TRACKS * N_TRACKS;
+		for ( int round = 0; round < N_ROUNDS; round++ )
+		{
+			final boolean warmup = round < N_ROUNDS / 2;
+
+			long start = System.nanoTime();
+			for ( final TrackSegment ts1 : references )
+				for ( final TrackSegment ts2 : candidates )
+					sink += legacyDistance( ts1, ts2, MAX_DIST );
+			final long legacy = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for ( final TrackSegment ts1 : references )
+				for ( final TrackSegment ts2 : candidates )
+					sink += new TrackToTrackDistance( ts1, ts2, DistanceTypes.DISTANCE_EUCLIDIAN, MAX_DIST ).distance;
+			final long constructor = System.nanoTime() - start;
+
+			final TrackToTrackDistance holder = new TrackToTrackDistance();
+			start = System.nanoTime();
+			for ( final TrackSegment ts1 : references )
+				for ( final TrackSegment ts2 : candidates )
+				{
+					TrackToTrackDistance.compute( ts1, ts2, DistanceTypes.DISTANCE_EUCLIDIAN, MAX_DIST, Double.POSITIVE_INFINITY, holder );
+					sink += holder.distance;
+				}
+			final long kernel = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for ( final TrackSegment ts1 : references )
+			{
+				final double bound = MAX_DIST * ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
+				for ( final TrackSegment ts2 : candidates )
+				{
+					TrackToTrackDistance.compute( ts1, ts2, DistanceTypes.DISTANCE_EUCLIDIAN, MAX_DIST, bound, holder );
+					sink += holder.distance;
+				}
+			}
+			final long bounded = System.nanoTime() - start;
+
+			System.out.println( String.format( "%s round %d - ns per pair: legacy %.1f, constructor %.1f, kernel %.1f, kernel with early exit %.1f",
+					warmup ? "Warmup" : "Measure", round,
+					( double ) legacy / nPairs, ( double ) constructor / nPairs,
+					( double ) kernel / nPairs, ( double ) bounded / nPairs ) );
+		}
+		System.out.println( "Checksum: " + sink );
+	}
+
+	/**
+	 * The Euclidian track distance as it was computed before the frame index,
+	 * looking up each detection by a linear search in the detection list.
+	 */
+	private static double legacyDistance( final TrackSegment ts1, final TrackSegment ts2, final double maxDist )
+	{
+		final int t0_1 = ts1.getFirstDetection().getT();
+		final int tend_1 = ts1.getLastDetection().getT();
+		final int t0_2 = ts2.getFirstDetection().getT();
+		final int tend_2 = ts2.getLastDetection().getT();
+		if ( !( ( t0_2 >= t0_1 && t0_2 <= tend_1 ) || ( tend_2 >= t0_1 && tend_2 <= tend_1 ) || ( t0_2 <= t0_1 && tend_2 >= tend_1 ) ) )
+			return maxDist * ( tend_1 - t0_1 + 1 );
+
+		double distance = maxDist * ( Math.abs( t0_2 - t0_1 ) + Math.abs( tend_2 - tend_1 ) );
+		for ( int t = Math.max( t0_1, t0_2 ); t <= Math.min( tend_1, tend_2 ); t++ )
+		{
+			final Detection d1 = linearSearch( ts1, t );
+			final Detection d2 = linearSearch( ts2, t );
+			final double ed = Math.sqrt( ( d1.getX() - d2.getX() ) * ( d1.getX() - d2.getX() ) + ( d1.getY() - d2.getY() ) * ( d1.getY() - d2.getY() ) + ( d1.getZ() - d2.getZ() ) * ( d1.getZ() - d2.getZ() ) );
+			if ( d2.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION && ed < maxDist )
+				distance += ed;
+			else
+				distance += maxDist;
+		}
+		return distance;
+	}
+
+	private static Detection linearSearch( final TrackSegment ts, final int t )
+	{
+		for ( final Detection detection : ts.getDetectionList() )
+			if ( detection.getT() == t )
+				return detection;
+		return null;
+	}
+}